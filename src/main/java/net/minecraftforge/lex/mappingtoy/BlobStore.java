@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) LexManos
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+package net.minecraftforge.lex.mappingtoy;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+
+/*
+ * Content addressed store shared by every version, so a class or resource that's identical between
+ * versions is only compressed and written once.
+ *
+ * Objects live in objects/ab/cdef..., named by the SHA1 of their uncompressed data and the compression
+ * level they were stored at, so jars built from them match jars written directly at that level. Each one
+ * holds the zip compression method, CRC and size followed by the compressed data, so a jar can be rebuilt
+ * from them without compressing anything again.
+ *
+ * Instead of a jar, a version gets a manifest next to where the jar would be: one line per entry in
+ * jar order, the object's hash and the entry name, with '-' in place of the hash for directories.
+ */
+public class BlobStore {
+    public static final String EXTENSION = ".blobs";
+    private static final String DIRECTORY = "-";
+
+    private final Path root;
+
+    public BlobStore(Path root) {
+        this.root = root;
+    }
+
+    public Path getRoot() {
+        return this.root;
+    }
+
+    private Path getPath(String hash) {
+        return root.resolve(hash.substring(0, 2)).resolve(hash.substring(2));
+    }
+
+    public boolean contains(String hash) {
+        return Files.isRegularFile(getPath(hash));
+    }
+
+    /*
+     * Stores the data if we don't already have it and returns its hash. Existing objects are never
+     * rewritten, so data that's been seen before costs a hash and nothing else.
+     */
+    public String put(byte[] data, int level) throws IOException {
+        String hash = HashFunction.SHA1.hash(data) + '-' + (level == ZipWriter.STORED ? "s" : level == Deflater.DEFAULT_COMPRESSION ? "d" : Integer.toString(level));
+        Path target = getPath(hash);
+        if (Files.isRegularFile(target))
+            return hash;
+        return store(target, hash, ZipWriter.compress(hash, data, level));
+    }
+
+    /*
+     * Entries copied without recompressing are kept exactly as they were, so they're named by their
+     * compressed data instead.
+     */
+    public String put(ZipWriter.Block block) throws IOException {
+        String hash = HashFunction.SHA1.hash(block.getCompressed()) + "-r" + block.getMethod();
+        Path target = getPath(hash);
+        if (Files.isRegularFile(target))
+            return hash;
+        return store(target, hash, block);
+    }
+
+    private String store(Path target, String hash, ZipWriter.Block block) throws IOException {
+        Files.createDirectories(target.getParent());
+        // Written to a temp file and moved in place, so other threads and processes never see half an object.
+        Path tmp = Files.createTempFile(target.getParent(), hash, ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(tmp))) {
+                out.writeByte(block.getMethod());
+                out.writeInt((int)block.getCrc());
+                out.writeInt((int)block.getSize());
+                out.write(block.getCompressed());
+            }
+            try {
+                Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        return hash;
+    }
+
+    public ZipWriter.Block getBlock(String name, String hash) throws IOException {
+        if (hash == null)
+            return ZipWriter.directory(name);
+
+        byte[] raw = Files.readAllBytes(getPath(hash));
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(raw))) {
+            int method = in.readUnsignedByte();
+            long crc = in.readInt() & 0xFFFFFFFFL;
+            long size = in.readInt() & 0xFFFFFFFFL;
+            byte[] compressed = new byte[raw.length - 9];
+            in.readFully(compressed);
+            return ZipWriter.precompressed(name, method, crc, size, compressed);
+        }
+    }
+
+    public byte[] get(String hash) throws IOException {
+        byte[] raw = Files.readAllBytes(getPath(hash));
+        InputStream in = new ByteArrayInputStream(raw, 9, raw.length - 9);
+        if (raw[0] == ZipEntry.STORED)
+            return Utils.readStreamFully(in);
+
+        Inflater inf = new Inflater(true);
+        try {
+            return Utils.readStreamFully(new InflaterInputStream(in, inf));
+        } finally {
+            inf.end();
+        }
+    }
+
+    // Entry names to hashes in jar order, directories have a null hash.
+    public static Map<String, String> readManifest(Path manifest) throws IOException {
+        Map<String, String> ret = new LinkedHashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(manifest)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int idx = line.indexOf(' ');
+                if (idx == -1)
+                    throw new IOException("Invalid manifest line: " + line);
+                String hash = line.substring(0, idx);
+                ret.put(line.substring(idx + 1), DIRECTORY.equals(hash) ? null : hash);
+            }
+        }
+        return ret;
+    }
+
+    public static void writeManifest(Path manifest, Map<String, String> entries) throws IOException {
+        Utils.writeAtomic(manifest, tmp -> {
+            try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, String> entry : entries.entrySet()) {
+                    writer.write(entry.getValue() == null ? DIRECTORY : entry.getValue());
+                    writer.write(' ');
+                    writer.write(entry.getKey());
+                    writer.write('\n');
+                }
+            }
+        });
+    }
+
+    /*
+     * Loads every entry of a manifest into a store, for stages that need to read the classes.
+     */
+    public ClassStore open(Path manifest) throws IOException {
+        ClassStore ret = new ClassStore();
+        try {
+            for (Map.Entry<String, String> entry : readManifest(manifest).entrySet())
+                ret.put(entry.getKey(), entry.getValue() == null ? new byte[0] : get(entry.getValue()));
+        } catch (IOException e) {
+            ret.close();
+            throw e;
+        }
+        return ret;
+    }
+
+    // Builds the real jar a manifest describes, copying the compressed data straight from the objects.
+    public void materialize(Path manifest, Path target) throws IOException {
+        Utils.writeAtomic(target, tmp -> {
+            try (ZipWriter jout = new ZipWriter(Files.newOutputStream(tmp))) {
+                for (Map.Entry<String, String> entry : readManifest(manifest).entrySet())
+                    jout.write(getBlock(entry.getKey(), entry.getValue()));
+            }
+        });
+    }
+
+    /*
+     * Materializes every manifest in the folder whose jar doesn't exist yet.
+     */
+    public void materializeAll(Path folder, boolean force) throws IOException {
+        if (!Files.isDirectory(folder))
+            return;
+
+        try (Stream<Path> files = Files.list(folder)) {
+            for (Path manifest : (Iterable<Path>)files.filter(p -> p.getFileName().toString().endsWith(EXTENSION)).sorted()::iterator) {
+                String name = manifest.getFileName().toString();
+                Path target = manifest.resolveSibling(name.substring(0, name.length() - EXTENSION.length()));
+                if (!force && Files.isRegularFile(target))
+                    continue;
+
+                MappingToy.log.info("  " + target.getFileName());
+                try {
+                    materialize(manifest, target);
+                } catch (IOException e) {
+                    MappingToy.log.info("    Failed: " + e.getMessage());
+                    Files.deleteIfExists(target);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) LexManos
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+package net.minecraftforge.lex.mappingtoy;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+
+/*
+ * Record of everything a version's last complete run produced, and the settings it was produced with.
+ * If the settings still match and every file is still there with the same size, there is nothing
+ * to do for that version and we can skip it without downloading, hashing or loading anything.
+ */
+public class BuildManifest {
+    private static final String FILENAME = "outputs.json";
+
+    String key;
+    Map<String, Long> outputs;
+
+    public static boolean isUpToDate(Path root, String key) {
+        Path file = root.resolve(FILENAME);
+        if (!Files.isRegularFile(file))
+            return false;
+
+        try {
+            BuildManifest manifest = Utils.loadJson(file, BuildManifest.class);
+            if (manifest == null || !key.equals(manifest.key) || manifest.outputs == null || manifest.outputs.isEmpty())
+                return false;
+
+            for (Map.Entry<String, Long> entry : manifest.outputs.entrySet()) {
+                Path target = root.resolve(entry.getKey());
+                if (!Files.isRegularFile(target) || Files.size(target) != entry.getValue())
+                    return false;
+            }
+            return true;
+        } catch (IOException | RuntimeException e) {
+            MappingToy.log.log(Level.WARNING, "  Invalid " + FILENAME + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /*
+     * Only records the run if every expected output exists, anything that failed is retried next time.
+     */
+    public static boolean write(Path root, String key, Collection<String> expected) {
+        Path file = root.resolve(FILENAME);
+        try {
+            BuildManifest manifest = new BuildManifest();
+            manifest.key = key;
+            manifest.outputs = new TreeMap<>();
+            for (String name : expected) {
+                Path target = root.resolve(name);
+                if (!Files.isRegularFile(target)) {
+                    Files.deleteIfExists(file);
+                    return false;
+                }
+                manifest.outputs.put(name, Files.size(target));
+            }
+            Utils.writeJson(file, manifest);
+            return true;
+        } catch (IOException e) {
+            MappingToy.log.log(Level.WARNING, "  Failed to write " + FILENAME + ": " + e.getMessage());
+            return false;
+        }
+    }
+}
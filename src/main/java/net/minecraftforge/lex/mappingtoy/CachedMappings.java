@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) LexManos
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+package net.minecraftforge.lex.mappingtoy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.logging.Level;
+
+/*
+ * A parsed mapping file, plus its reverse, shared by every stage of a version.
+ *
+ * Nothing is read until a stage actually asks for the mappings, so versions that are already
+ * built never have to touch them.
+ *
+ * Parsing the ProGuard text is slow, so the parsed result is also saved as a binary snapshot
+ * next to the source, tagged with the source's hash. As long as the source doesn't change the
+ * snapshot is loaded instead, which skips all the text parsing.
+ *
+ * Snapshot layout: magic, format version, source SHA1, then the Mappings' own string pool and arrays.
+ */
+public class CachedMappings {
+    private static final int MAGIC = 0x4D544D53; // MTMS
+    private static final int VERSION = 2;
+
+    private final Path source;
+    private String hash;
+    private Mappings forward;
+
+    public CachedMappings(Path source) {
+        this.source = source;
+    }
+
+    public Path getSource() {
+        return this.source;
+    }
+
+    public synchronized String getHash() throws IOException {
+        if (this.hash == null)
+            this.hash = HashFunction.SHA1.hash(this.source);
+        return this.hash;
+    }
+
+    public synchronized Mappings getForward() throws IOException {
+        if (this.forward == null)
+            this.forward = load();
+        return this.forward;
+    }
+
+    public Mappings getReverse() throws IOException {
+        return getForward().reverse();
+    }
+
+    private Mappings load() throws IOException {
+        Path cache = source.resolveSibling(source.getFileName() + ".bin");
+        String hash = getHash();
+
+        if (Files.isRegularFile(cache)) {
+            try {
+                Mappings ret = readSnapshot(cache, hash);
+                if (ret != null)
+                    return ret;
+            } catch (IOException e) {
+                MappingToy.log.log(Level.WARNING, "  Invalid mapping cache " + cache.getFileName() + ": " + e.getMessage());
+            }
+        }
+
+        Mappings ret = Mappings.loadProguard(source);
+        try {
+            writeSnapshot(cache, hash, ret);
+        } catch (IOException e) {
+            MappingToy.log.log(Level.WARNING, "  Failed to write mapping cache " + cache.getFileName() + ": " + e.getMessage());
+            Files.deleteIfExists(cache);
+        }
+        return ret;
+    }
+
+    private static Mappings readSnapshot(Path cache, String hash) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(cache)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || !hash.equals(in.readUTF()))
+                return null;
+            return Mappings.read(in);
+        }
+    }
+
+    private static void writeSnapshot(Path cache, String hash, Mappings map) throws IOException {
+        Utils.writeAtomic(cache, tmp -> {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(hash);
+                map.write(out);
+            }
+        });
+    }
+}
@@ -0,0 +1,357 @@
+/*
+ * Copyright (c) LexManos
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+package net.minecraftforge.lex.mappingtoy;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/*
+ * Ordered set of jar entries that can be handed from one stage to the next without
+ * writing and re-reading an intermediate jar.
+ *
+ * Entries are either held in memory, spilled to a temp file once the memory limit is reached,
+ * or are references to an entry in an open zip file. Zip references keep their compressed data
+ * so they can be copied to an output jar as is.
+ */
+public class ClassStore implements Closeable {
+    private static final int MAX_PENDING = 512;
+    private static final long DEFAULT_LIMIT = Long.getLong("toy.storeMemory", 256) * 1024 * 1024;
+
+    private final Map<String, Data> entries = new LinkedHashMap<>();
+    private final List<Closeable> owned = new ArrayList<>();
+    private final Set<ClassStore> sources = new HashSet<>();
+    private final long limit;
+    private long memory = 0;
+    private Path spillFile;
+    private FileChannel spill;
+    private long spillSize = 0;
+    // The owner, plus every store sharing our entries. Nothing is freed until all of them are closed.
+    private int refs = 1;
+    private boolean closed = false;
+
+    public ClassStore() {
+        this(DEFAULT_LIMIT);
+    }
+
+    public ClassStore(long limit) {
+        this.limit = limit;
+    }
+
+    // Most a default store keeps on the heap before spilling to disk
+    public static long getDefaultLimit() {
+        return DEFAULT_LIMIT;
+    }
+
+    /*
+     * Lazy view of a jar file, nothing is read until it's asked for.
+     */
+    public static ClassStore open(Path jar) throws IOException {
+        ClassStore ret = new ClassStore();
+        ZipReader reader = new ZipReader(jar);
+        ret.own(reader);
+        for (ZipReader.Entry entry : reader.getEntries())
+            ret.putZip(entry.getName(), reader, entry);
+        return ret;
+    }
+
+    /*
+     * Reads all classes from the jar into the store, other files are kept as references to the jar.
+     * If delete is set, the jar file is removed when the store is closed.
+     */
+    public static ClassStore load(Path jar, boolean delete) throws IOException {
+        ClassStore ret = new ClassStore();
+        if (delete)
+            ret.own(() -> Files.deleteIfExists(jar));
+        try {
+            ZipReader reader = new ZipReader(jar);
+            ret.own(reader);
+            for (ZipReader.Entry entry : reader.getEntries()) {
+                if (entry.getName().endsWith(".class"))
+                    ret.put(entry.getName(), reader.read(entry));
+                else
+                    ret.putZip(entry.getName(), reader, entry);
+            }
+        } catch (IOException e) {
+            ret.close();
+            throw e;
+        }
+        return ret;
+    }
+
+    public synchronized void own(Closeable value) {
+        this.owned.add(value);
+    }
+
+    public synchronized List<String> getNames() {
+        return Collections.unmodifiableList(new ArrayList<>(this.entries.keySet()));
+    }
+
+    public synchronized boolean contains(String name) {
+        return this.entries.containsKey(name);
+    }
+
+    public void put(String name, byte[] data) throws IOException {
+        synchronized (this) {
+            checkOpen();
+            if (memory + data.length <= limit) {
+                entries.put(name, new Memory(data));
+                memory += data.length;
+                return;
+            }
+
+            if (spill == null) {
+                spillFile = Files.createTempFile("mappingtoy", ".spill");
+                spill = FileChannel.open(spillFile, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+            }
+
+            long offset = spillSize;
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            while (buf.hasRemaining())
+                spill.write(buf, offset + buf.position());
+            spillSize += data.length;
+            entries.put(name, new Spilled(offset, data.length));
+        }
+    }
+
+    /*
+     * Shares an entry from another store without reading it. The other store is kept open until
+     * this one is closed, so they can be closed in any order.
+     */
+    public void copy(String name, ClassStore from) throws IOException {
+        boolean added;
+        synchronized (this) {
+            checkOpen();
+            added = from != this && sources.add(from);
+        }
+        if (added) {
+            try {
+                from.retain();
+            } catch (IOException e) {
+                synchronized (this) {
+                    sources.remove(from);
+                }
+                throw e;
+            }
+        }
+
+        Data data;
+        synchronized (from) {
+            from.checkOpen();
+            data = from.entries.get(name);
+        }
+        if (data == null)
+            return;
+        synchronized (this) {
+            checkOpen();
+            entries.put(name, data);
+        }
+    }
+
+    public synchronized void putZip(String name, ZipReader reader, ZipReader.Entry entry) {
+        entries.put(name, new Zipped(reader, entry));
+    }
+
+    public byte[] get(String name) throws IOException {
+        Data data;
+        synchronized (this) {
+            checkOpen();
+            data = entries.get(name);
+        }
+        return data == null ? null : data.read();
+    }
+
+    /*
+     * Builds the output block for an entry, copying the compressed data as is if we have it.
+     */
+    public ZipWriter.Block getBlock(String name, String output, int level) throws IOException {
+        Data data;
+        synchronized (this) {
+            checkOpen();
+            data = entries.get(name);
+        }
+        if (data == null)
+            throw new IOException("Missing entry: " + name);
+        if (data instanceof Zipped)
+            return ZipWriter.raw(output, ((Zipped)data).reader, ((Zipped)data).entry, level);
+        if (name.endsWith("/"))
+            return ZipWriter.directory(output);
+        return ZipWriter.compress(output, data.read(), level);
+    }
+
+    public void write(Path target, int level) throws IOException {
+        Utils.writeAtomic(target, tmp -> {
+            try (ZipWriter jout = new ZipWriter(Files.newOutputStream(tmp), level)) {
+                for (String name : getNames())
+                    jout.write(getBlock(name, name, level));
+            }
+        });
+    }
+
+    // Same as above but compresses entries on the executor, they are still written in order.
+    public void write(Path target, int level, ExecutorService executor) throws IOException {
+        Utils.writeAtomic(target, tmp -> {
+            try (ZipWriter jout = new ZipWriter(Files.newOutputStream(tmp), level)) {
+                Deque<Future<ZipWriter.Block>> pending = new ArrayDeque<>();
+                try {
+                    for (String name : getNames()) {
+                        if (pending.size() >= MAX_PENDING)
+                            jout.write(Utils.getFuture(pending.poll()));
+                        pending.add(executor.submit(() -> getBlock(name, name, level)));
+                    }
+                    while (!pending.isEmpty())
+                        jout.write(Utils.getFuture(pending.poll()));
+                } finally {
+                    pending.forEach(f -> f.cancel(true));
+                }
+            }
+        });
+    }
+
+    private void checkOpen() throws IOException {
+        if (refs == 0)
+            throw new IOException("store closed");
+    }
+
+    private synchronized void retain() throws IOException {
+        checkOpen();
+        refs++;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+        }
+        release();
+    }
+
+    private void release() throws IOException {
+        IOException error = null;
+        List<ClassStore> from;
+        synchronized (this) {
+            if (--refs > 0)
+                return;
+
+            if (spill != null) {
+                try {
+                    spill.close();
+                    Files.deleteIfExists(spillFile);
+                } catch (IOException e) {
+                    error = e;
+                }
+                spill = null;
+            }
+
+            for (Closeable c : owned) {
+                try {
+                    c.close();
+                } catch (IOException e) {
+                    if (error == null)
+                        error = e;
+                    else
+                        error.addSuppressed(e);
+                }
+            }
+            owned.clear();
+            entries.clear();
+            memory = 0;
+
+            from = new ArrayList<>(sources);
+            sources.clear();
+        }
+
+        // Outside our lock, so two stores releasing each other can't deadlock
+        for (ClassStore source : from) {
+            try {
+                source.release();
+            } catch (IOException e) {
+                if (error == null)
+                    error = e;
+                else
+                    error.addSuppressed(e);
+            }
+        }
+
+        if (error != null)
+            throw error;
+    }
+
+    private interface Data {
+        byte[] read() throws IOException;
+    }
+
+    private static class Memory implements Data {
+        private final byte[] data;
+
+        private Memory(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public byte[] read() {
+            return this.data;
+        }
+    }
+
+    private class Spilled implements Data {
+        private final long offset;
+        private final int length;
+
+        private Spilled(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public byte[] read() throws IOException {
+            ByteBuffer buf = ByteBuffer.allocate(length);
+            FileChannel channel;
+            synchronized (ClassStore.this) {
+                channel = spill;
+            }
+            if (channel == null)
+                throw new IOException("store closed");
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, offset + buf.position()) < 0)
+                    throw new EOFException("Unexpected end of spill file");
+            }
+            return buf.array();
+        }
+    }
+
+    private static class Zipped implements Data {
+        private final ZipReader reader;
+        private final ZipReader.Entry entry;
+
+        private Zipped(ZipReader reader, ZipReader.Entry entry) {
+            this.reader = reader;
+            this.entry = entry;
+        }
+
+        @Override
+        public byte[] read() throws IOException {
+            return this.reader.read(this.entry);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) LexManos
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+package net.minecraftforge.lex.mappingtoy;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/*
+ * SHA1 of every class in a renamed jar, written next to it as <prefix>_digests.txt so versions can be
+ * compared without opening any jars.
+ *
+ * One line per class sorted by mapped name: the mapped name, the obfuscated name, the SHA1 of the
+ * obfuscated class and the SHA1 of the renamed class. Obfuscated names are shuffled between versions,
+ * so comparisons are done by mapped name and renamed digest.
+ */
+public class DigestIndex {
+    public static final String SUFFIX = "_digests.txt";
+
+    private final Map<String, String> lines = new ConcurrentSkipListMap<>();
+
+    // Safe to call from multiple threads, the lines are kept sorted as they're added.
+    public void add(String obf, String obfHash, String mapped, String mappedHash) {
+        lines.put(mapped, mapped + ' ' + obf + ' ' + obfHash + ' ' + mappedHash);
+    }
+
+    public void write(Path target) throws IOException {
+        Utils.writeAtomic(target, tmp -> {
+            try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                for (String line : lines.values()) {
+                    writer.write(line);
+                    writer.write('\n');
+                }
+            }
+        });
+    }
+
+    // Mapped name to {obfuscated name, obfuscated SHA1, renamed SHA1}
+    public static Map<String, String[]> read(Path index) throws IOException {
+        Map<String, String[]> ret = new TreeMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(index)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] pts = line.split(" ");
+                if (pts.length != 4)
+                    throw new IOException("Invalid digest line: " + line);
+                ret.put(pts[0], new String[] { pts[1], pts[2], pts[3] });
+            }
+        }
+        return ret;
+    }
+
+    /*
+     * Logs every class that was changed, added or removed going from the first version to the second.
+     * Uses the first kind of renamed jar that both versions have an index for.
+     */
+    public static void diff(Path output, String from, String to) throws IOException {
+        for (String prefix : new String[] { "joined_a", "joined", "client", "server" }) {
+            Path a = output.resolve(from).resolve(prefix + SUFFIX);
+            Path b = output.resolve(to).resolve(prefix + SUFFIX);
+            if (!Files.isRegularFile(a) || !Files.isRegularFile(b))
+                continue;
+
+            MappingToy.log.info("Diff " + from + " -> " + to + " (" + prefix + "):");
+            Map<String, String[]> left = read(a);
+            Map<String, String[]> right = read(b);
+
+            List<String> changed = new ArrayList<>();
+            List<String> added = new ArrayList<>();
+            List<String> removed = new ArrayList<>();
+            for (Map.Entry<String, String[]> entry : right.entrySet()) {
+                String[] old = left.get(entry.getKey());
+                if (old == null)
+                    added.add(entry.getKey());
+                else if (!old[2].equals(entry.getValue()[2]))
+                    changed.add(entry.getKey());
+            }
+            for (String name : left.keySet()) {
+                if (!right.containsKey(name))
+                    removed.add(name);
+            }
+
+            MappingToy.log.info("  Changed: " + changed.size() + " Added: " + added.size() + " Removed: " + removed.size());
+            changed.forEach(name -> MappingToy.log.info("  ~ " + name));
+            added.forEach(name -> MappingToy.log.info("  + " + name));
+            removed.forEach(name -> MappingToy.log.info("  - " + name));
+            return;
+        }
+        MappingToy.log.info("No digest index shared by " + from + " and " + to);
+    }
+}
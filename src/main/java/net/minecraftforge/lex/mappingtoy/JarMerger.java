@@ -0,0 +1,351 @@
+/*
+ * Copyright (c) LexManos
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+package net.minecraftforge.lex.mappingtoy;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AnnotationNode;
+import org.objectweb.asm.tree.ClassNode;
+
+/*
+ * Merges the client and server jars into a single joined jar, replacing mergetool's Merger.
+ *
+ * Both jars are indexed from their central directories, then each class is merged on the
+ * worker pool. Results are collected in a fixed order with a bounded number in flight, and
+ * go into a ClassStore which spills to disk if it gets too large. Classes, fields and methods
+ * only found on one side get the same side annotations mergetool would add, and the annotation
+ * classes are injected the same way.
+ */
+public class JarMerger {
+    private static final int MAX_PENDING = 512;
+
+    private final Path client;
+    private final Path server;
+    private final Set<String> whitelist;
+    private final SideAnnotation side;
+    private final ExecutorService executor;
+
+    public JarMerger(Path client, Path server, Set<String> whitelist, SideAnnotation side, ExecutorService executor) {
+        this.client = client;
+        this.server = server;
+        this.whitelist = whitelist;
+        this.side = side;
+        this.executor = executor;
+    }
+
+    public ClassStore merge() throws IOException {
+        ClassStore ret = new ClassStore();
+        try (ZipReader cjar = new ZipReader(client);
+             Closer closer = new Closer()) {
+            ZipReader sjar = openServer(closer);
+
+            Map<String, ZipReader.Entry> cEntries = index(cjar);
+            Map<String, ZipReader.Entry> sEntries = index(sjar);
+
+            // Same layout as mergetool: data files first, then classes, each client then server only
+            List<String> names = new ArrayList<>();
+            for (boolean classes : new boolean[] { false, true }) {
+                for (String name : cEntries.keySet()) {
+                    if (name.endsWith(".class") == classes)
+                        names.add(name);
+                }
+                for (String name : sEntries.keySet()) {
+                    if (name.endsWith(".class") == classes && !cEntries.containsKey(name))
+                        names.add(name);
+                }
+            }
+
+            Deque<Map.Entry<String, Future<byte[]>>> pending = new ArrayDeque<>();
+            try {
+                for (String name : names) {
+                    if (pending.size() >= MAX_PENDING)
+                        add(ret, pending.poll());
+
+                    ZipReader.Entry cEntry = cEntries.get(name);
+                    ZipReader.Entry sEntry = sEntries.get(name);
+                    Future<byte[]> future = executor.submit(() -> {
+                        byte[] cData = cEntry == null ? null : cjar.read(cEntry);
+                        byte[] sData = sEntry == null ? null : sjar.read(sEntry);
+                        return name.endsWith(".class") ? processClass(cData, sData) : cData != null ? cData : sData;
+                    });
+                    pending.add(new AbstractMap.SimpleEntry<>(name, future));
+                }
+
+                while (!pending.isEmpty())
+                    add(ret, pending.poll());
+            } finally {
+                pending.forEach(e -> e.getValue().cancel(true));
+            }
+
+            // The annotations we added need to resolve, so their classes go in last unless the jars already had them
+            if (side != null) {
+                for (String cls : side.getClasses()) {
+                    if (!ret.contains(cls + ".class"))
+                        ret.put(cls + ".class", SideAnnotation.readClass(cls));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            ret.close();
+            throw e;
+        }
+        return ret;
+    }
+
+    private static void add(ClassStore store, Map.Entry<String, Future<byte[]>> entry) throws IOException {
+        store.put(entry.getKey(), Utils.getFuture(entry.getValue()));
+    }
+
+    private Map<String, ZipReader.Entry> index(ZipReader jar) {
+        Map<String, ZipReader.Entry> ret = new LinkedHashMap<>();
+        for (ZipReader.Entry entry : jar.getEntries()) {
+            String name = entry.getName();
+            if (entry.isDirectory() || name.startsWith("META-INF/"))
+                continue;
+            if (name.endsWith(".class") && whitelist != null && !whitelist.isEmpty() && !whitelist.contains(name.substring(0, name.length() - 6)))
+                continue;
+            ret.put(name, entry);
+        }
+        return ret;
+    }
+
+    /*
+     * Newer servers are a bundler jar, with the real server jar inside it. If that is the case
+     * extract the real one to a temp file so we can read it like any other jar.
+     */
+    private ZipReader openServer(Closer closer) throws IOException {
+        ZipReader outer = closer.add(new ZipReader(server));
+        ZipReader.Entry list = outer.getEntries().stream().filter(e -> "META-INF/versions.list".equals(e.getName())).findFirst().orElse(null);
+        if (list == null)
+            return outer;
+
+        String path = null;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(outer.read(list)), StandardCharsets.UTF_8))) {
+            String line = reader.readLine();
+            if (line != null) {
+                String[] pts = line.split("\t");
+                if (pts.length == 3)
+                    path = "META-INF/versions/" + pts[2];
+            }
+        }
+
+        final String target = path;
+        ZipReader.Entry inner = outer.getEntries().stream().filter(e -> e.getName().equals(target)).findFirst().orElse(null);
+        if (inner == null)
+            throw new IOException("Invalid bundled server jar, missing " + path + ": " + server);
+
+        Path tmp = Files.createTempFile("mappingtoy", ".jar");
+        closer.add(() -> Files.deleteIfExists(tmp));
+        Files.write(tmp, outer.read(inner));
+        return closer.add(new ZipReader(tmp));
+    }
+
+    private byte[] processClass(byte[] cData, byte[] sData) {
+        if (cData == null || sData == null) {
+            byte[] data = cData == null ? sData : cData;
+            if (side == null)
+                return data;
+            ClassNode node = read(data);
+            node.visibleAnnotations = add(node.visibleAnnotations, makeSide(cData != null));
+            return write(node);
+        }
+
+        if (Arrays.equals(cData, sData))
+            return cData;
+
+        ClassNode cClass = read(cData);
+        ClassNode sClass = read(sData);
+
+        cClass.fields = merge(cClass.name, cClass.fields, sClass.fields, f -> f.name + ' ' + f.desc,
+            f -> { if (side != null) f.visibleAnnotations = add(f.visibleAnnotations, makeSide(true)); },
+            f -> { if (side != null) f.visibleAnnotations = add(f.visibleAnnotations, makeSide(false)); });
+
+        cClass.methods = merge(cClass.name, cClass.methods, sClass.methods, m -> m.name + m.desc,
+            m -> { if (side != null) m.visibleAnnotations = add(m.visibleAnnotations, makeSide(true)); },
+            m -> { if (side != null) m.visibleAnnotations = add(m.visibleAnnotations, makeSide(false)); });
+
+        cClass.innerClasses = append(cClass.innerClasses, sClass.innerClasses, i -> i.name, i -> {}, i -> {});
+
+        // Only the newer annotations can say which side an interface belongs to.
+        List<String[]> sided = new ArrayList<>();
+        cClass.interfaces = append(cClass.interfaces, sClass.interfaces, i -> i,
+            i -> sided.add(new String[] { i, side == null ? null : side.getClient() }),
+            i -> sided.add(new String[] { i, side == null ? null : side.getServer() }));
+
+        if (!sided.isEmpty() && side != null && side.getInterfaces() != null) {
+            AnnotationNode holder = new AnnotationNode(side.getInterfaces());
+            AnnotationVisitor values = holder.visitArray("value");
+            for (String[] itf : sided) {
+                AnnotationVisitor ann = values.visitAnnotation(null, side.getHolder());
+                ann.visitEnum("value", side.getType(), itf[1]);
+                ann.visit(side.getInterfaceElement(), Type.getObjectType(itf[0]));
+                ann.visitEnd();
+            }
+            values.visitEnd();
+            cClass.visibleAnnotations = add(cClass.visibleAnnotations, holder);
+        }
+
+        return write(cClass);
+    }
+
+    private AnnotationNode makeSide(boolean client) {
+        AnnotationNode ret = new AnnotationNode(side.getHolder());
+        ret.visitEnum("value", side.getType(), client ? side.getClient() : side.getServer());
+        return ret;
+    }
+
+    private static ClassNode read(byte[] data) {
+        ClassNode ret = new ClassNode();
+        new ClassReader(data).accept(ret, 0);
+        return ret;
+    }
+
+    private static byte[] write(ClassNode node) {
+        ClassWriter writer = new ClassWriter(0);
+        node.accept(writer);
+        return writer.toByteArray();
+    }
+
+    private static List<AnnotationNode> add(List<AnnotationNode> list, AnnotationNode value) {
+        List<AnnotationNode> ret = list == null ? new ArrayList<>() : list;
+        ret.add(value);
+        return ret;
+    }
+
+    /*
+     * Same walk as mergetool: step through both lists together, and whenever they disagree insert
+     * the entry only one side has into the other list at that position. Both sides have to list
+     * their shared entries in the same order, which is always true for jars built from one source.
+     */
+    private static <T> List<T> merge(String cls, List<T> client, List<T> server, Function<T, String> key, Consumer<T> clientOnly, Consumer<T> serverOnly) {
+        if (server == null || server.isEmpty()) {
+            if (client != null)
+                client.forEach(clientOnly);
+            return client;
+        }
+        if (client == null || client.isEmpty()) {
+            server.forEach(serverOnly);
+            return new ArrayList<>(server);
+        }
+
+        Set<String> sKeys = new HashSet<>();
+        server.forEach(e -> sKeys.add(key.apply(e)));
+
+        // Trailing nulls so running off the end of either list needs no special case
+        List<String> common = new ArrayList<>();
+        for (T e : client) {
+            if (sKeys.contains(key.apply(e)))
+                common.add(key.apply(e));
+        }
+        common.add(null);
+
+        List<T> cList = new ArrayList<>(client);
+        List<T> sList = new ArrayList<>(server);
+        cList.add(null);
+        sList.add(null);
+
+        for (int x = 0, m = 0; x < cList.size(); x++) {
+            T cEntry = cList.get(x);
+            T sEntry = sList.get(x);
+            String cKey = cEntry == null ? null : key.apply(cEntry);
+            String sKey = sEntry == null ? null : key.apply(sEntry);
+            String mKey = common.get(m);
+
+            if (Objects.equals(cKey, sKey)) {
+                if (!Objects.equals(cKey, mKey))
+                    throw new IllegalStateException("Mismatched " + cls + ": " + cKey + " -> " + mKey);
+                m++;
+            } else if (!Objects.equals(cKey, mKey)) {
+                if (cEntry == null)
+                    throw new IllegalStateException("Mismatched " + cls + ": " + sKey + " -> " + mKey);
+                clientOnly.accept(cEntry);
+                sList.add(x, cEntry);
+            } else if (!Objects.equals(sKey, mKey)) {
+                if (sEntry == null)
+                    throw new IllegalStateException("Mismatched " + cls + ": " + cKey + " -> " + mKey);
+                serverOnly.accept(sEntry);
+                cList.add(x, sEntry);
+            }
+        }
+
+        cList.remove(cList.size() - 1);
+        return cList;
+    }
+
+    // Interfaces and inner classes: the client's, then whatever only the server has.
+    private static <T> List<T> append(List<T> client, List<T> server, Function<T, String> key, Consumer<T> clientOnly, Consumer<T> serverOnly) {
+        List<T> ret = client == null ? new ArrayList<>() : new ArrayList<>(client);
+        Set<String> cKeys = new HashSet<>();
+        Set<String> sKeys = new HashSet<>();
+        ret.forEach(e -> cKeys.add(key.apply(e)));
+        if (server != null)
+            server.forEach(e -> sKeys.add(key.apply(e)));
+
+        for (T e : ret) {
+            if (!sKeys.contains(key.apply(e)))
+                clientOnly.accept(e);
+        }
+        if (server != null) {
+            for (T e : server) {
+                if (cKeys.add(key.apply(e))) {
+                    serverOnly.accept(e);
+                    ret.add(e);
+                }
+            }
+        }
+        return client == null && ret.isEmpty() ? null : ret;
+    }
+
+    private static class Closer implements Closeable {
+        private final List<Closeable> values = new ArrayList<>();
+
+        private <T extends Closeable> T add(T value) {
+            values.add(value);
+            return value;
+        }
+
+        @Override
+        public void close() throws IOException {
+            IOException error = null;
+            for (int x = values.size() - 1; x >= 0; x--) {
+                try {
+                    values.get(x).close();
+                } catch (IOException e) {
+                    if (error == null)
+                        error = e;
+                    else
+                        error.addSuppressed(e);
+                }
+            }
+            if (error != null)
+                throw error;
+        }
+    }
+}
@@ -21,50 +21,83 @@ import java.util.Queue;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.stream.Collectors;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
 
 import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
 import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
-import org.objectweb.asm.tree.AbstractInsnNode;
 import org.objectweb.asm.tree.ClassNode;
-import org.objectweb.asm.tree.FieldInsnNode;
 import org.objectweb.asm.tree.FieldNode;
-import org.objectweb.asm.tree.InvokeDynamicInsnNode;
-import org.objectweb.asm.tree.LabelNode;
-import org.objectweb.asm.tree.LineNumberNode;
-import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.InsnList;
 import org.objectweb.asm.tree.MethodNode;
-import org.objectweb.asm.tree.VarInsnNode;
 
 import net.minecraftforge.lex.mappingtoy.JarMetadata.ClassInfo.FieldInfo;
 import net.minecraftforge.lex.mappingtoy.JarMetadata.ClassInfo.MethodInfo;
 import net.minecraftforge.lex.mappingtoy.JarMetadata.ClassInfo.RecordInfo;
-import net.minecraftforge.srgutils.IMappingFile;
-import net.minecraftforge.srgutils.IMappingFile.IClass;
 
 public class JarMetadata {
     private static boolean DEBUG = Boolean.parseBoolean(System.getProperty("toy.debugLambdas", "false"));
     private static final Handle LAMBDA_METAFACTORY = new Handle(Opcodes.H_INVOKESTATIC, "java/lang/invoke/LambdaMetafactory", "metafactory",       "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;Ljava/lang/invoke/MethodType;Ljava/lang/invoke/MethodHandle;Ljava/lang/invoke/MethodType;)Ljava/lang/invoke/CallSite;", false);
     private static final Handle LAMBDA_ALTMETAFACTORY = new Handle(Opcodes.H_INVOKESTATIC, "java/lang/invoke/LambdaMetafactory", "altMetafactory", "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;[Ljava/lang/Object;)Ljava/lang/invoke/CallSite;", false);
+    private static final int RESOLVE_BATCH = 64;
     private static final Handle RECORD_BOOTSTRAP = new Handle(Opcodes.H_INVOKESTATIC, "java/lang/runtime/ObjectMethods", "bootstrap", "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/TypeDescriptor;Ljava/lang/Class;Ljava/lang/String;[Ljava/lang/invoke/MethodHandle;)Ljava/lang/Object;", false);
 
-    public static void makeMetadata(Path output, Collection<Path> libraries, IMappingFile n2o, String type, boolean obfed, boolean force) {
-        Path target = output.resolve(type + "_meta.json");
-        if (!force && Files.isRegularFile(target))
+    // Single json, or the index of the shards when splitting it up.
+    public static String getTarget(String type, int shards) {
+        return shards == MetadataShards.SINGLE ? type + "_meta.json" : type + "_meta/" + MetadataShards.INDEX;
+    }
+
+    // Metadata and the reference index are made in the same pass, so one missing means both are redone.
+    public static boolean exists(Path output, String type, int shards) {
+        return Files.isRegularFile(output.resolve(getTarget(type, shards))) && Files.isRegularFile(output.resolve(type + ReferenceIndex.SUFFIX));
+    }
+
+    public static void makeMetadata(Path output, Collection<Path> libraries, CachedMappings mappings, String type, boolean obfed, boolean force, int shards, ExecutorService executor) {
+        if (!force && exists(output, type, shards))
+            return;
+
+        Path jar = output.resolve(type + ".jar");
+        try (ClassStore source = ClassStore.open(jar)) {
+            makeMetadata(output, source, libraries, mappings, type, obfed, force, shards, executor);
+        } catch (IOException e) {
+            MappingToy.log.log(Level.SEVERE, "Failed to load: " + jar.toString(), e);
+        }
+    }
+
+    public static void makeMetadata(Path output, ClassStore source, Collection<Path> libraries, CachedMappings mappings, String type, boolean obfed, boolean force, int shards, ExecutorService executor) {
+        Path target = output.resolve(getTarget(type, shards));
+        Path refsTarget = output.resolve(type + ReferenceIndex.SUFFIX);
+        if (!force && exists(output, type, shards))
             return;
 
         MappingToy.log.info("  " + target.getFileName());
 
-        IMappingFile o2n = n2o.reverse();
-        Tree tree = new Tree();
+        Mappings n2o, o2n;
+        try {
+            n2o = mappings.getForward();
+            o2n = mappings.getReverse();
+        } catch (IOException e) {
+            MappingToy.log.log(Level.SEVERE, "    Failed to load mappings: " + mappings.getSource(), e);
+            return;
+        }
+
+        // Filled in as each local class is first parsed, so it's complete once every class has been looked up below.
+        ReferenceIndex refs = new ReferenceIndex();
+        Tree tree = new Tree(refs);
 
-        Set<String> classes = tree.load(output.resolve(type + ".jar"), false);
+        Set<String> classes = tree.load(source, false);
 
         for (Path lib : libraries)
             tree.load(lib, true);
@@ -72,21 +105,226 @@ public class JarMetadata {
         for (String cls : classes)
             resolveBouncers(tree, tree.getInfo(cls));
 
-        for (String cls : classes)
-            resolve(tree, cls, obfed, o2n, n2o);
+        try {
+            List<String> order = new ArrayList<>();
+            Set<String> seen = new HashSet<>();
+            for (String cls : classes)
+                serialOrder(tree, cls, seen, order);
 
-        for (String cls : classes)
-            resolveTransitive(tree, tree.getInfo(cls));
+            inOrder(order, dependencies(tree, order), executor, cls -> resolve(tree, cls, obfed, o2n, n2o));
+
+            inParallel(new ArrayList<>(classes), executor, (cls, writes) -> resolveTransitive(tree, tree.getInfo(cls), writes));
+        } catch (IOException e) {
+            MappingToy.log.log(Level.SEVERE, "    Failed to resolve: " + e.toString());
+            return;
+        }
 
         Map<String, ClassInfo> data = new TreeMap<>();
         for (String cls : classes)
             data.put(cls, tree.getInfo(cls));
 
         try {
-            Utils.writeJson(target, data);
+            if (shards == MetadataShards.SINGLE)
+                Utils.writeJson(target, data);
+            else
+                MetadataShards.write(target.getParent(), data, shards, executor);
         } catch (IOException e) {
             MappingToy.log.log(Level.SEVERE, "    Failed to save meta: " + e.toString());
         }
+
+        try {
+            refs.write(refsTarget);
+        } catch (IOException e) {
+            MappingToy.log.log(Level.SEVERE, "    Failed to save references: " + e.toString());
+        }
+    }
+
+    // The order resolving every class one at a time would go in, each class after its parents.
+    private static void serialOrder(Tree tree, String cls, Set<String> seen, List<String> order) {
+        ClassInfo info = tree.getInfo(cls);
+        if (info == null || !seen.add(cls))
+            return;
+
+        if (info.getSuper() != null)
+            serialOrder(tree, info.getSuper(), seen, order);
+
+        if (info.interfaces != null)
+            for (String intf : info.interfaces)
+                serialOrder(tree, intf, seen, order);
+
+        order.add(cls);
+    }
+
+    /*
+     * What each class has to wait for so resolving them in parallel gives the same result as the serial order.
+     *
+     * Besides its parents, a class waits for every class before it that may touch the same parent methods.
+     * resolveAbstract adds overrides to methods of a class's parents, and findOverrides reads them, so a
+     * class reading a method's overrides waits for the last class before it that could have written them,
+     * and one writing them also waits for everyone that read them since. Both sides are worked out from
+     * the tree alone, before anything is resolved, so they can only ever be too cautious.
+     */
+    private static Map<String, Set<String>> dependencies(Tree tree, List<String> order) {
+        Map<String, Set<String>> ret = new HashMap<>();
+        Map<String, String> writers = new HashMap<>();
+        Map<String, List<String>> readers = new HashMap<>();
+        for (String cls : order) {
+            ClassInfo info = tree.getInfo(cls);
+            Set<String> deps = new HashSet<>();
+            if (info.getSuper() != null && tree.getInfo(info.getSuper()) != null)
+                deps.add(info.getSuper());
+            if (info.interfaces != null)
+                for (String intf : info.interfaces)
+                    if (tree.getInfo(intf) != null)
+                        deps.add(intf);
+
+            List<ClassInfo> parents = hierarchy(tree, info);
+            for (String method : overrideReads(parents)) {
+                String writer = writers.get(method);
+                if (writer != null)
+                    deps.add(writer);
+                readers.computeIfAbsent(method, k -> new ArrayList<>()).add(cls);
+            }
+
+            if (!info.isAbstract()) {
+                for (String method : abstractWrites(parents)) {
+                    String writer = writers.put(method, cls);
+                    if (writer != null)
+                        deps.add(writer);
+                    List<String> read = readers.remove(method);
+                    if (read != null)
+                        deps.addAll(read);
+                }
+            }
+
+            deps.remove(cls);
+            ret.put(cls, deps);
+        }
+        return ret;
+    }
+
+    // The class and everything above it, nearest first.
+    private static List<ClassInfo> hierarchy(Tree tree, ClassInfo cls) {
+        List<ClassInfo> ret = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        Queue<ClassInfo> que = new LinkedList<>();
+        que.add(cls);
+        seen.add(cls.name);
+        while (!que.isEmpty()) {
+            ClassInfo info = que.poll();
+            ret.add(info);
+            List<String> next = new ArrayList<>();
+            if (info.getSuper() != null)
+                next.add(info.getSuper());
+            if (info.interfaces != null)
+                next.addAll(info.interfaces);
+            for (String name : next) {
+                ClassInfo parent = tree.getInfo(name);
+                if (parent != null && seen.add(name))
+                    que.add(parent);
+            }
+        }
+        return ret;
+    }
+
+    /*
+     * Every method whose overrides findOverrides might read for this class. It walks up from the class with
+     * the name and descriptor of each of the class's methods, and of every bouncer targeting them.
+     */
+    private static Set<String> overrideReads(List<ClassInfo> hierarchy) {
+        Set<String> keys = new HashSet<>();
+        if (hierarchy.get(0).methods != null)
+            keys.addAll(hierarchy.get(0).methods.keySet());
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (ClassInfo info : hierarchy) {
+                if (info.methods == null)
+                    continue;
+                for (String key : new ArrayList<>(keys)) {
+                    MethodInfo mtd = info.methods.get(key);
+                    if (mtd == null)
+                        continue;
+                    for (Method target : mtd.getTargetsThis())
+                        changed |= keys.add(target.getName() + target.getDesc());
+                }
+            }
+        }
+
+        Set<String> ret = new HashSet<>();
+        for (ClassInfo info : hierarchy) {
+            if (info.methods == null)
+                continue;
+            for (String key : keys) {
+                if (info.methods.containsKey(key))
+                    ret.add(info.name + ' ' + key);
+            }
+        }
+        return ret;
+    }
+
+    // Every method resolveAbstract might add an override to, any concrete method matching an abstract one above the class.
+    private static Set<String> abstractWrites(List<ClassInfo> hierarchy) {
+        Set<String> keys = new HashSet<>();
+        for (ClassInfo info : hierarchy) {
+            if (info.methods == null)
+                continue;
+            for (MethodInfo mtd : info.methods.values()) {
+                if (mtd.isAbstract())
+                    keys.add(mtd.getName() + mtd.getDesc());
+            }
+        }
+
+        Set<String> ret = new HashSet<>();
+        for (ClassInfo info : hierarchy) {
+            if (info.methods == null)
+                continue;
+            for (String key : keys) {
+                MethodInfo mtd = info.methods.get(key);
+                if (mtd != null && !mtd.isAbstract())
+                    ret.add(info.name + ' ' + key);
+            }
+        }
+        return ret;
+    }
+
+    // Runs the task for every class on the executor, each one as soon as everything it depends on has finished.
+    private static void inOrder(List<String> order, Map<String, Set<String>> deps, ExecutorService executor, Consumer<String> task) throws IOException {
+        Map<String, CompletableFuture<Void>> futures = new HashMap<>();
+        for (String cls : order) {
+            CompletableFuture<?>[] wait = deps.get(cls).stream().map(futures::get).toArray(CompletableFuture<?>[]::new);
+            futures.put(cls, CompletableFuture.allOf(wait).thenRunAsync(() -> task.accept(cls), executor));
+        }
+        Utils.getFuture(CompletableFuture.allOf(futures.values().toArray(new CompletableFuture<?>[0])));
+    }
+
+    /*
+     * Runs the task for every class in batches on the executor, then runs the writes they queued in class order.
+     *
+     * Anything a task would change outside its own class is queued instead, so tasks never see each other's
+     * changes half done and the result doesn't depend on which thread got there first.
+     */
+    private static void inParallel(List<String> classes, ExecutorService executor, BiConsumer<String, List<Runnable>> task) throws IOException {
+        List<Future<List<Runnable>>> pending = new ArrayList<>();
+        try {
+            for (int x = 0; x < classes.size(); x += RESOLVE_BATCH) {
+                List<String> batch = classes.subList(x, Math.min(x + RESOLVE_BATCH, classes.size()));
+                pending.add(executor.submit(() -> {
+                    List<Runnable> writes = new ArrayList<>();
+                    for (String cls : batch)
+                        task.accept(cls, writes);
+                    return writes;
+                }));
+            }
+
+            List<Runnable> writes = new ArrayList<>();
+            for (Future<List<Runnable>> future : pending)
+                writes.addAll(Utils.getFuture(future));
+            writes.forEach(Runnable::run);
+        } finally {
+            pending.forEach(f -> f.cancel(true));
+        }
     }
 
     private static void resolveBouncers(Tree tree, ClassInfo cls) {
@@ -108,7 +346,7 @@ public class JarMetadata {
     }
 
     //Recursive, but should be fine as we don't have class super complex class trees
-    private static void resolve(Tree tree, String cls, boolean obfed, IMappingFile o2n, IMappingFile n2o) {
+    private static void resolve(Tree tree, String cls, boolean obfed, Mappings o2n, Mappings n2o) {
         ClassInfo info = tree.getInfo(cls);
         if (info == null || info.resolved)
             return;
@@ -122,13 +360,14 @@ public class JarMetadata {
 
         //Gather official enum names, we know these names and can use them as they are in the bytecode itself. It's also required to make enums compile correctly.
         if (info.isEnum()) {
-            IClass mcls = obfed ? o2n.getClass(cls) : n2o.getClass(cls);
+            Mappings map = obfed ? o2n : n2o;
+            int mcls = map.findClass(cls);
 
             if (info.fields != null) {
                 final int FLAG = Opcodes.ACC_FINAL | Opcodes.ACC_ENUM | Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC;
 
                 for (FieldInfo fld : info.fields.values()) {
-                    String official = obfed ? mcls == null ? null : mcls.remapField(fld.name) : fld.name;
+                    String official = obfed ? mcls == -1 ? null : map.remapField(cls, fld.name) : fld.name;
                     if (official != null && ((fld.getAccess() & FLAG) == FLAG || "$VALUES".equals(official))) {
                         fld.forceName(official);
                     }
@@ -137,7 +376,7 @@ public class JarMetadata {
 
             if (info.methods != null) {
                 for (MethodInfo mtd : info.methods.values()) {
-                    String official = obfed ? mcls == null ? null : mcls.remapMethod(mtd.getName(), mtd.getDesc()) : mtd.getName();
+                    String official = obfed ? mcls == -1 ? null : map.remapMethod(cls, mtd.getName(), mtd.getDesc()) : mtd.getName();
                     if ("values".equals(official) && mtd.getDesc().equals("()[L" + info.name + ';'))
                         mtd.forceName("values");
                     else if ("valueOf".equals(official) && mtd.getDesc().equals("(Ljava/lang/String;)L" + info.name + ';'))
@@ -346,6 +585,7 @@ public class JarMetadata {
         return null;
     }
 
+    // The overrides found here are on the parents' methods, see dependencies for how that stays in order.
     private static void resolveAbstract(Tree tree, ClassInfo cls) {
         Map<String, String> abs = new HashMap<>();
         Set<String> known = new TreeSet<>();
@@ -431,7 +671,8 @@ public class JarMetadata {
         }
     }
 
-    private static void resolveTransitive(Tree tree, ClassInfo cls) {
+    // Only looks at the tree, the overrides and names it finds for the children are queued in writes.
+    private static void resolveTransitive(Tree tree, ClassInfo cls, List<Runnable> writes) {
         if (!cls.isInterface() || cls.methods == null)
             return;
 
@@ -483,27 +724,29 @@ public class JarMetadata {
             }
 
             if (!overrides.isEmpty()) {
-                for (MethodInfo m : overrides) {
-                    if (m.getOwner() != cls) {
-                        Set<Method> ovs = new TreeSet<>(m.getOverrides());
-                        ovs.add(myMtd.getMethod());
-                        m.setOverrides(ovs);
+                writes.add(() -> {
+                    for (MethodInfo m : overrides) {
+                        if (m.getOwner() != cls) {
+                            Set<Method> ovs = new TreeSet<>(m.getOverrides());
+                            ovs.add(myMtd.getMethod());
+                            m.setOverrides(ovs);
+                        }
                     }
-                }
                 
-                String forcedName = null;
-                for (MethodInfo override : applyForcedName) {
-                    if (!override.getOwner().isLocal()) {
-                        forcedName = override.getName();
-                        break;
+                    String forcedName = null;
+                    for (MethodInfo override : applyForcedName) {
+                        if (!override.getOwner().isLocal()) {
+                            forcedName = override.getName();
+                            break;
+                        }
                     }
-                }
                 
-                for (MethodInfo m : applyForcedName) {
-                    if (forcedName != null) {
-                        m.forceName(forcedName);
+                    for (MethodInfo m : applyForcedName) {
+                        if (forcedName != null) {
+                            m.forceName(forcedName);
+                        }
                     }
-                }
+                });
             }
         }
     }
@@ -525,67 +768,84 @@ public class JarMetadata {
         }
     }
 
+    /*
+     * Classes are parsed the first time they're asked for, which can happen from several threads while
+     * resolving. Parsed classes are a lock free lookup, only parsing a new one takes the lock.
+     */
     private static class Tree {
-        private Map<String, ClassInfo> classes = new HashMap<>();
+        private Map<String, ClassInfo> classes = new ConcurrentHashMap<>();
         private Set<String> negative = new HashSet<>();
         private Map<String, byte[]> sources = new HashMap<>();
         private Set<String> local = new HashSet<>();
+        private final ReferenceIndex refs;
+
+        private Tree(ReferenceIndex refs) {
+            this.refs = refs;
+        }
 
         public Set<String> load(Path path, boolean library) {
-            try (ZipInputStream jin = new ZipInputStream(Files.newInputStream(path))) {
-                Set<String> classes = new TreeSet<>();
+            try (ClassStore source = ClassStore.open(path)) {
+                return load(source, library);
+            } catch (IOException e) {
+                MappingToy.log.log(Level.SEVERE, "Failed to load: " + path.toString(), e);
+            }
+            return Collections.emptySet();
+        }
 
-                ZipEntry entry = null;
-                while ((entry = jin.getNextEntry()) != null) {
-                    String name = entry.getName();
-                    if (entry.isDirectory() || !name.endsWith(".class"))
+        public Set<String> load(ClassStore source, boolean library) {
+            Set<String> classes = new TreeSet<>();
+            for (String name : source.getNames()) {
+                if (name.endsWith("/") || !name.endsWith(".class"))
+                    continue;
+
+                String cls = name.substring(0, name.length() - 6);
+                if (!sources.containsKey(cls)) {
+                    try {
+                        sources.put(cls, source.get(name));
+                    } catch (IOException e) {
+                        MappingToy.log.log(Level.SEVERE, "Failed to load: " + name, e);
                         continue;
-
-                    String cls = name.substring(0, name.length() - 6);
-                    if (!sources.containsKey(cls)) {
-                        byte[] data = Utils.readStreamFully(jin);
-                        sources.put(cls, data);
-                        classes.add(cls);
-                        if (!library)
-                            local.add(cls);
                     }
+                    classes.add(cls);
+                    if (!library)
+                        local.add(cls);
                 }
-
-                return classes;
-            } catch (IOException e) {
-                MappingToy.log.log(Level.SEVERE, "Failed to load: " + path.toString(), e);
             }
-            return Collections.emptySet();
+            return classes;
         }
 
         private ClassInfo getInfo(String cls) {
-            if (negative.contains(cls))
-                return null;
-
             ClassInfo ret = classes.get(cls);
-            if (ret == null) {
-                byte[] data = sources.remove(cls);
-                if (data == null) {
-                    try (InputStream in = JarMetadata.class.getClassLoader().getResourceAsStream(cls + ".class")) {
-                        if (in == null) {
+            if (ret != null)
+                return ret;
+
+            synchronized (this) {
+                if (negative.contains(cls))
+                    return null;
+
+                ret = classes.get(cls);
+                if (ret == null) {
+                    byte[] data = sources.remove(cls);
+                    if (data == null) {
+                        try (InputStream in = JarMetadata.class.getClassLoader().getResourceAsStream(cls + ".class")) {
+                            if (in == null) {
+                                MappingToy.log.info("    Failed to find class: " + cls);
+                                negative.add(cls);
+                                return null;
+                            }
+                            data = Utils.readStreamFully(in);
+                        } catch (Throwable e) {
                             MappingToy.log.info("    Failed to find class: " + cls);
                             negative.add(cls);
                             return null;
                         }
-                        data = Utils.readStreamFully(in);
-                    } catch (Throwable e) {
-                        MappingToy.log.info("    Failed to find class: " + cls);
-                        negative.add(cls);
-                        return null;
                     }
+                    boolean isLocal = local.contains(cls);
+                    ret = new ClassInfo(data, isLocal, isLocal ? refs : null);
+                    classes.put(cls, ret);
                 }
-                ClassNode classNode = new ClassNode();
-                ClassReader classReader = new ClassReader(data);
-                classReader.accept(classNode, 0);
-                ret = new ClassInfo(classNode, local.contains(cls));
-                classes.put(cls, ret);
+                return ret;
             }
-            return ret;
         }
 
         public boolean instanceOf(ClassInfo child, ClassInfo target) {
@@ -680,58 +940,41 @@ public class JarMetadata {
         private transient boolean resolved = false;
         private List<RecordInfo> records;
 
-        private ClassInfo(ClassNode node, boolean local) {
+        private ClassInfo(byte[] data, boolean local, ReferenceIndex refs) {
+            ClassScan scan = new ClassScan(refs);
+            new ClassReader(data).accept(scan, ClassReader.SKIP_FRAMES);
+
             this.local = local;
-            this.name = node.name;
-            this.superName = "java/lang/Object".equals(node.superName) ? null : node.superName;
+            this.name = scan.name;
+            this.superName = "java/lang/Object".equals(scan.superName) ? null : scan.superName;
             this.isRecord = "java/lang/Record".equals(this.superName);
-            this.interfaces = node.interfaces != null && !node.interfaces.isEmpty() ? new ArrayList<>(node.interfaces) : null;
-            this.access = node.access == 0 ? null : node.access;
-            this.signature = node.signature;
+            this.interfaces = scan.interfaces != null && scan.interfaces.length != 0 ? new ArrayList<>(Arrays.asList(scan.interfaces)) : null;
+            this.access = scan.access == 0 ? null : scan.access;
+            this.signature = scan.signature;
 
-            if (node.fields == null || node.fields.isEmpty()) {
+            if (scan.fields.isEmpty()) {
                 this.fields = null;
             } else {
                 this.fields = new TreeMap<>();
-                node.fields.stream().forEach(fld -> this.fields.put(fld.name, new FieldInfo(fld)));
+                scan.fields.stream().forEach(fld -> this.fields.put(fld.name, new FieldInfo(fld)));
             }
 
-            if (node.methods == null || node.methods.isEmpty()) {
+            if (scan.methods.isEmpty()) {
                 this.methods = null;
             } else {
-                //Gather Lambda methods so we can skip them in bouncers?
-                Set<String> lambdas = new HashSet<>();
-                for (MethodNode mtd : node.methods) {
-                    for (AbstractInsnNode asn : (Iterable<AbstractInsnNode>)() -> mtd.instructions.iterator()) {
-                        if (asn instanceof InvokeDynamicInsnNode) {
-                            Handle target = getLambdaTarget((InvokeDynamicInsnNode)asn);
-                            if (target != null) {
-                                lambdas.add(target.getOwner() + '/' + target.getName() + target.getDesc());
-                            }
-                        }
-                    }
-                }
-
+                //Lambda methods were gathered while reading, so we can skip them in bouncers
                 this.methods = new TreeMap<>();
-                for (MethodNode mtd : node.methods) {
+                for (MethodScan mtd : scan.methods) {
                     String key = mtd.name + mtd.desc;
-                    this.methods.put(key, new MethodInfo(mtd, lambdas.contains(this.name + '/' + key)));
-                    if (DEBUG && mtd.name.startsWith("lambda$") && !lambdas.contains(this.name + '/' + key)) {
-                        MappingToy.log.log(Level.INFO, "Bad lambda: " + node.name + '/' + mtd.name + ' ' + mtd.desc);
-                        MappingToy.log.log(Level.INFO, Utils.toString(mtd.instructions));
+                    this.methods.put(key, new MethodInfo(mtd, scan.lambdas.contains(this.name + '/' + key)));
+                    if (DEBUG && mtd.name.startsWith("lambda$") && !scan.lambdas.contains(this.name + '/' + key)) {
+                        MappingToy.log.log(Level.INFO, "Bad lambda: " + this.name + '/' + mtd.name + ' ' + mtd.desc);
+                        MappingToy.log.log(Level.INFO, Utils.toString(getInstructions(data, mtd.name, mtd.desc)));
                     }
                 }
             }
         }
 
-        private Handle getLambdaTarget(InvokeDynamicInsnNode idn) {
-            if (LAMBDA_METAFACTORY.equals(idn.bsm)    && idn.bsmArgs != null && idn.bsmArgs.length == 3 && idn.bsmArgs[1] instanceof Handle)
-                return ((Handle)idn.bsmArgs[1]);
-            if (LAMBDA_ALTMETAFACTORY.equals(idn.bsm) && idn.bsmArgs != null && idn.bsmArgs.length == 5 && idn.bsmArgs[1] instanceof Handle)
-                return ((Handle)idn.bsmArgs[1]);
-            return null;
-        }
-
         public boolean isLocal() {
             return this.local;
         }
@@ -807,81 +1050,24 @@ public class JarMetadata {
             private Method parent;
             private transient Set<Method> targetsThis = new HashSet<>();
 
-            private MethodInfo(MethodNode node, boolean lambda) {
+            private MethodInfo(MethodScan node, boolean lambda) {
                 this.method = new Method(ClassInfo.this.name, node.name, node.desc);
                 this.access = node.access == 0 ? null : node.access;
                 this.signature = node.signature;
                 this.isLambda = lambda;
 
-                Bounce bounce = null;
-                if (!lambda && (node.access & (Opcodes.ACC_SYNTHETIC | Opcodes.ACC_BRIDGE)) != 0 && (node.access & Opcodes.ACC_STATIC) == 0) {
-                    AbstractInsnNode start = node.instructions.getFirst();
-                    if (start instanceof LabelNode && start.getNext() instanceof LineNumberNode)
-                        start = start.getNext().getNext();
-
-                    if (start instanceof VarInsnNode) {
-                        VarInsnNode n = (VarInsnNode)start;
-                        if (n.var == 0 && n.getOpcode() == Opcodes.ALOAD) {
-                            AbstractInsnNode end = node.instructions.getLast();
-                            if (end instanceof LabelNode)
-                                end = end.getPrevious();
-
-                            if (end.getOpcode() >= Opcodes.IRETURN && end.getOpcode() <= Opcodes.RETURN)
-                                end = end.getPrevious();
-
-                            if (end instanceof MethodInsnNode) {
-                                Type[] args = Type.getArgumentTypes(node.desc);
-                                int var = 1;
-                                int index = 0;
-                                start = start.getNext();
-                                while (start != end) {
-                                    if (start instanceof VarInsnNode) {
-                                        if (((VarInsnNode)start).var != var || index + 1 > args.length) {
-                                            //Arguments are switched around, so seems like lambda!
-                                            end = null;
-                                            break;
-                                        }
-                                        var += args[index++].getSize();
-                                    } else if (start.getOpcode() == Opcodes.INSTANCEOF || start.getOpcode() == Opcodes.CHECKCAST) {
-                                        //Valid!
-                                    } else {
-                                        // Anything else is invalid in a bouncer {As far as I know}, so we're most likely a lambda
-                                        end = null;
-                                        break;
-                                    }
-                                    start = start.getNext();
-                                }
-
-                                MethodInsnNode mtd = (MethodInsnNode)end;
-                                if (end != null && (mtd.owner.equals(ClassInfo.this.name) || mtd.owner.equals(ClassInfo.this.superName)) && Type.getArgumentsAndReturnSizes(node.desc) == Type.getArgumentsAndReturnSizes(mtd.desc))
-                                    bounce = new Bounce(new Method(mtd.owner, mtd.name, mtd.desc));
-                            }
-                        }
-                    }
-                }
-                this.bouncer = bounce;
-
-                if (ClassInfo.this.isRecord && (node.access & Opcodes.ACC_STATIC) == 0 && this.method.desc.contains("()") && ClassInfo.this.fields != null) {
-                    AbstractInsnNode start = node.instructions.getFirst();
-                    if (start instanceof LabelNode && start.getNext() instanceof LineNumberNode)
-                        start = start.getNext().getNext();
-
-                    if (start instanceof VarInsnNode) {
-                        VarInsnNode n = (VarInsnNode)start;
-                        if (n.var == 0 && n.getOpcode() == Opcodes.ALOAD) {
-                            if (start.getNext() instanceof FieldInsnNode) {
-                                FieldInsnNode fld = (FieldInsnNode)start.getNext();
-                                if (fld.owner.equals(ClassInfo.this.name) && fld.getNext() != null) {
-                                    AbstractInsnNode ret = fld.getNext();
-                                    if (ret.getOpcode() >= Opcodes.IRETURN && ret.getOpcode() <= Opcodes.RETURN) {
-                                        FieldInfo fldI = ClassInfo.this.fields.get(fld.name);
-                                        if (fldI != null)
-                                            fldI.addGetter(this);
-                                    }
-                                }
-                            }
-                        }
-                    }
+                //Only synthetic or bridge instance methods are followed for the bouncer shape, lambdas aren't known until the whole class is read
+                Method call = lambda ? null : node.getBouncerCall();
+                if (call != null && (call.owner.equals(ClassInfo.this.name) || call.owner.equals(ClassInfo.this.superName)) && Type.getArgumentsAndReturnSizes(node.desc) == Type.getArgumentsAndReturnSizes(call.desc))
+                    this.bouncer = new Bounce(call);
+                else
+                    this.bouncer = null;
+
+                String getter = node.getGetterField();
+                if (getter != null && ClassInfo.this.fields != null) {
+                    FieldInfo fldI = ClassInfo.this.fields.get(getter);
+                    if (fldI != null)
+                        fldI.addGetter(this);
                 }
             }
 
@@ -952,6 +1138,294 @@ public class JarMetadata {
         }
     }
 
+    private static Handle getLambdaTarget(Handle bsm, Object[] bsmArgs) {
+        if (LAMBDA_METAFACTORY.equals(bsm)    && bsmArgs != null && bsmArgs.length == 3 && bsmArgs[1] instanceof Handle)
+            return ((Handle)bsmArgs[1]);
+        if (LAMBDA_ALTMETAFACTORY.equals(bsm) && bsmArgs != null && bsmArgs.length == 5 && bsmArgs[1] instanceof Handle)
+            return ((Handle)bsmArgs[1]);
+        return null;
+    }
+
+    // Only used to print bad lambdas, everything else reads classes without keeping their instructions.
+    private static InsnList getInstructions(byte[] data, String name, String desc) {
+        ClassNode node = new ClassNode();
+        new ClassReader(data).accept(node, 0);
+        for (MethodNode mtd : node.methods) {
+            if (mtd.name.equals(name) && mtd.desc.equals(desc))
+                return mtd.instructions;
+        }
+        return new InsnList();
+    }
+
+    /*
+     * Reads only what ClassInfo needs from a class. Method bodies are looked at by MethodScan as they
+     * stream past instead of being built into instruction lists.
+     */
+    private static class ClassScan extends ClassVisitor {
+        private final ReferenceIndex refs;
+        private final List<FieldNode> fields = new ArrayList<>();
+        private final List<MethodScan> methods = new ArrayList<>();
+        private final Set<String> lambdas = new HashSet<>();
+        private String name;
+        private String superName;
+        private String[] interfaces;
+        private int access;
+        private String signature;
+        private boolean isRecord;
+
+        private ClassScan(ReferenceIndex refs) {
+            super(Opcodes.ASM9);
+            this.refs = refs;
+        }
+
+        @Override
+        public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+            this.name = name;
+            this.superName = superName;
+            this.interfaces = interfaces;
+            this.access = access;
+            this.signature = signature;
+            this.isRecord = "java/lang/Record".equals(superName);
+        }
+
+        @Override
+        public FieldVisitor visitField(int access, String name, String desc, String signature, Object value) {
+            fields.add(new FieldNode(access, name, desc, signature, null));
+            return null;
+        }
+
+        @Override
+        public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+            MethodScan ret = new MethodScan(this, access, name, desc, signature);
+            methods.add(ret);
+            return ret;
+        }
+    }
+
+    /*
+     * Follows a method's instructions as they're read, looking for the two shapes MethodInfo cares about:
+     *   Bouncers: aload 0, each argument loaded in order with optional casts, one call, then an optional return and label.
+     *   Record getters: aload 0, a get of one of the class's own fields, then a return.
+     * Either may start with a label and line number. Lambda targets and references are noted along the way.
+     */
+    private static class MethodScan extends MethodVisitor {
+        private static final int LABEL = -2;
+        private static final int LINE = -3;
+
+        private static final int FAILED = -1;
+        // Shared start
+        private static final int FIRST = 0;
+        private static final int AFTER_LABEL = 1;
+        private static final int START = 2;
+        private static final int MATCHED = 3;
+        // Bouncer
+        private static final int ARGUMENTS = 1;
+        private static final int CALLED = 2;
+        private static final int RETURNED = 3;
+        private static final int ENDED = 4;
+        // Record getter
+        private static final int FIELD = 1;
+        private static final int RETURN = 2;
+        private static final int FOUND = 3;
+
+        private final ClassScan cls;
+        private final int access;
+        private final String name;
+        private final String desc;
+        private final String signature;
+        private final boolean wantBouncer;
+        private final boolean wantGetter;
+
+        private int start = FIRST;
+        private int bouncer = FAILED;
+        private int getter = FAILED;
+        private Type[] args;
+        private int var = 1;
+        private int index = 0;
+        private Method call;
+        private String field;
+
+        private MethodScan(ClassScan cls, int access, String name, String desc, String signature) {
+            super(Opcodes.ASM9);
+            this.cls = cls;
+            this.access = access;
+            this.name = name;
+            this.desc = desc;
+            this.signature = signature;
+            this.wantBouncer = (access & (Opcodes.ACC_SYNTHETIC | Opcodes.ACC_BRIDGE)) != 0 && (access & Opcodes.ACC_STATIC) == 0;
+            this.wantGetter = cls.isRecord && (access & Opcodes.ACC_STATIC) == 0 && desc.contains("()");
+            if (!wantBouncer && !wantGetter)
+                this.start = FAILED;
+        }
+
+        private Method getBouncerCall() {
+            return bouncer >= CALLED ? call : null;
+        }
+
+        private String getGetterField() {
+            return getter == FOUND ? field : null;
+        }
+
+        private static boolean isReturn(int opcode) {
+            return opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN;
+        }
+
+        // True if the instruction was taken by the shared start, the rest only see what comes after it.
+        private boolean start(int opcode, int var) {
+            if (start == FIRST && opcode == LABEL) {
+                start = AFTER_LABEL;
+            } else if (start == AFTER_LABEL) {
+                start = opcode == LINE ? START : FAILED;
+            } else if (start == FIRST || start == START) {
+                start = opcode == Opcodes.ALOAD && var == 0 ? MATCHED : FAILED;
+                if (start == MATCHED) {
+                    bouncer = wantBouncer ? ARGUMENTS : FAILED;
+                    getter = wantGetter ? FIELD : FAILED;
+                    if (wantBouncer)
+                        args = Type.getArgumentTypes(desc);
+                }
+            } else {
+                return false;
+            }
+            return true;
+        }
+
+        private void other(int opcode) {
+            if (start(opcode, -1))
+                return;
+
+            if (bouncer == ARGUMENTS)
+                bouncer = opcode == Opcodes.INSTANCEOF || opcode == Opcodes.CHECKCAST ? ARGUMENTS : FAILED;
+            else if (bouncer == CALLED)
+                bouncer = isReturn(opcode) ? RETURNED : opcode == LABEL ? ENDED : FAILED;
+            else if (bouncer == RETURNED)
+                bouncer = opcode == LABEL ? ENDED : FAILED;
+            else if (bouncer == ENDED)
+                bouncer = FAILED;
+
+            otherGetter(opcode);
+        }
+
+        private void otherGetter(int opcode) {
+            if (getter == FIELD)
+                getter = FAILED;
+            else if (getter == RETURN)
+                getter = isReturn(opcode) ? FOUND : FAILED;
+        }
+
+        @Override
+        public void visitVarInsn(int opcode, int var) {
+            if (start(opcode, var))
+                return;
+
+            if (bouncer == ARGUMENTS && var == this.var && index + 1 <= args.length)
+                this.var += args[index++].getSize();
+            else
+                bouncer = FAILED;
+
+            otherGetter(opcode);
+        }
+
+        @Override
+        public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean isInterface) {
+            if (cls.refs != null)
+                cls.refs.addCall(cls.name, this.name, this.desc, owner, name, desc);
+            if (start(opcode, -1))
+                return;
+
+            if (bouncer == ARGUMENTS) {
+                bouncer = CALLED;
+                call = new Method(owner, name, desc);
+            } else {
+                bouncer = FAILED;
+            }
+
+            otherGetter(opcode);
+        }
+
+        @Override
+        public void visitFieldInsn(int opcode, String owner, String name, String desc) {
+            if (cls.refs != null)
+                cls.refs.addField(cls.name, this.name, this.desc, opcode, owner, name, desc);
+            if (start(opcode, -1))
+                return;
+
+            bouncer = FAILED;
+
+            if (getter == FIELD && owner.equals(cls.name)) {
+                getter = RETURN;
+                field = name;
+            } else {
+                otherGetter(opcode);
+            }
+        }
+
+        @Override
+        public void visitInvokeDynamicInsn(String name, String desc, Handle bsm, Object... bsmArgs) {
+            Handle target = getLambdaTarget(bsm, bsmArgs);
+            if (target != null)
+                cls.lambdas.add(target.getOwner() + '/' + target.getName() + target.getDesc());
+            if (cls.refs != null)
+                cls.refs.addHandles(cls.name, this.name, this.desc, bsmArgs);
+            other(Opcodes.INVOKEDYNAMIC);
+        }
+
+        @Override
+        public void visitLabel(Label label) {
+            other(LABEL);
+        }
+
+        @Override
+        public void visitLineNumber(int line, Label start) {
+            other(LINE);
+        }
+
+        @Override
+        public void visitInsn(int opcode) {
+            other(opcode);
+        }
+
+        @Override
+        public void visitIntInsn(int opcode, int operand) {
+            other(opcode);
+        }
+
+        @Override
+        public void visitTypeInsn(int opcode, String type) {
+            other(opcode);
+        }
+
+        @Override
+        public void visitJumpInsn(int opcode, Label label) {
+            other(opcode);
+        }
+
+        @Override
+        public void visitLdcInsn(Object value) {
+            other(Opcodes.LDC);
+        }
+
+        @Override
+        public void visitIincInsn(int var, int increment) {
+            other(Opcodes.IINC);
+        }
+
+        @Override
+        public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+            other(Opcodes.TABLESWITCH);
+        }
+
+        @Override
+        public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+            other(Opcodes.LOOKUPSWITCH);
+        }
+
+        @Override
+        public void visitMultiANewArrayInsn(String desc, int numDimensions) {
+            other(Opcodes.MULTIANEWARRAY);
+        }
+    }
+
     private static class Method implements Comparable<Method> {
         private final String owner;
         private final String name;
@@ -998,7 +1472,8 @@ public class JarMetadata {
 
     private static class Bounce {
         private Method target;
-        private Method owner;
+        // Can be filled in while walking another class's bouncers, which always works out the same owner.
+        private volatile Method owner;
 
         private Bounce(Method target) {
             this.target = target;
@@ -6,18 +6,21 @@ package net.minecraftforge.lex.mappingtoy;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
-import java.util.zip.ZipOutputStream;
 
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
@@ -25,118 +28,217 @@ import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.commons.ClassRemapper;
 import org.objectweb.asm.commons.Remapper;
 
-import net.minecraftforge.srgutils.IMappingFile;
-import net.minecraftforge.srgutils.IMappingFile.IClass;
 
 public class JarRenamer {
-    public static void makeMappedJar(Path root, String mapping, String prefix, boolean force) {
+    // How many entries can be in flight at once, bounds memory use when the writer falls behind.
+    private static final int MAX_PENDING = 512;
+
+    // Name of the file a renamed jar ends up in, a manifest instead of the jar itself when using a blob store.
+    public static String getTarget(String prefix, BlobStore blobs) {
+        return prefix + "_n.jar" + (blobs == null ? "" : BlobStore.EXTENSION);
+    }
+
+    // Both the renamed jar and its digest index have been written.
+    public static boolean exists(Path root, String prefix, BlobStore blobs) {
+        return Files.isRegularFile(root.resolve(getTarget(prefix, blobs))) && Files.isRegularFile(root.resolve(prefix + DigestIndex.SUFFIX));
+    }
+
+    public static void makeMappedJar(Path root, CachedMappings mappings, String prefix, boolean force, ExecutorService executor, int compression, BlobStore blobs, RemapCache cache) {
         Path source = root.resolve(prefix + ".jar");
-        Path target = root.resolve(prefix + "_n.jar");
-        Path srg    = root.resolve(mapping);
+        if (!force && exists(root, prefix, blobs))
+            return;
+
+        if (!Files.isRegularFile(source) || mappings == null)
+            return;
+
+        try (ClassStore store = ClassStore.open(source)) {
+            makeMappedJar(root, store, mappings, prefix, force, executor, compression, blobs, cache);
+        } catch (IOException e) {
+            MappingToy.log.log(Level.WARNING, "    Failed: " + e.getMessage(), e);
+        }
+    }
 
-        if (!force && Files.isRegularFile(target))
+    public static void makeMappedJar(Path root, ClassStore source, CachedMappings mappings, String prefix, boolean force, ExecutorService executor, int compression, BlobStore blobs, RemapCache cache) {
+        Path target = root.resolve(getTarget(prefix, blobs));
+
+        if (!force && exists(root, prefix, blobs))
             return;
 
-        if (!Files.isRegularFile(source) || !Files.isRegularFile(srg))
+        if (source == null || mappings == null)
             return;
 
         try {
             MappingToy.log.info("  " + target.getFileName());
 
-            try (ZipInputStream  jin = new ZipInputStream(Files.newInputStream(source));
-                 ZipOutputStream jout = new ZipOutputStream(Files.newOutputStream(target))) {
-
-                IMappingFile map = IMappingFile.load(srg.toFile());
-                SimpleRemapper remapper = new SimpleRemapper(map);
-
-                Set<String> dirs = new HashSet<>();
-
-                ZipEntry entry = null;
-                while ((entry = jin.getNextEntry()) != null) {
-                    String name = entry.getName();
-                    if (entry.isDirectory()) {
-                        if (!dirs.contains(name)) {
-                            jout.putNextEntry(Utils.getStableEntry(name));
-                            dirs.add(name);
-                        }
-                    } else if (name.endsWith("MANIFEST.MF")) {
-                        BufferedReader buf = new BufferedReader(new InputStreamReader(jin));
-                        ByteArrayOutputStream bao = new ByteArrayOutputStream();
-                        BufferedWriter out = new BufferedWriter(new OutputStreamWriter(bao));
-
-                        String line = null;
-                        boolean lastSpace = false;
-                        while((line = buf.readLine()) != null) {
-                            if (line.isEmpty()) {
-                                if (!lastSpace) {
-                                    out.write("\r\n");
-                                    lastSpace = true;
-                                }
-                            } else if (line.startsWith("Name:")) {
-                                buf.readLine(); //Kill the SHA1-Digest line
-                                buf.readLine(); //kill the empty line
-                            } else {
-                                out.write(line);
-                                out.write("\r\n");
-                                lastSpace = false;
-                            }
-                        }
-
-                        out.flush();
-                        startEntry(jout, name, dirs);
-                        jout.write(bao.toByteArray());
-                    } else if (name.endsWith(".class")) {
-                        byte[] data = Utils.readStreamFully(jin);
-                        ClassReader reader = new ClassReader(data);
-                        ClassWriter writer = new ClassWriter(0);
-                        ClassVisitor visitor = new ClassRemapper(writer, remapper);
-                        reader.accept(visitor, 0);
-                        startEntry(jout, map.remapClass(name.substring(0, name.length() - 6)) + ".class", dirs);
-                        jout.write(writer.toByteArray());
-                    } else {
-                        startEntry(jout, name, dirs);
-                        Utils.copy(jin, jout);
-                    }
-                }
-            }
+            Mappings map = mappings.getReverse();
+            SimpleRemapper remapper = new SimpleRemapper(map);
+            DigestIndex digests = new DigestIndex();
+            if (blobs != null)
+                writeBlobs(target, source, map, remapper, cache, digests, blobs, executor, compression);
+            else
+                Utils.writeAtomic(target, tmp -> writeJar(tmp, source, map, remapper, cache, digests, executor, compression));
+            digests.write(root.resolve(prefix + DigestIndex.SUFFIX));
         } catch (IOException e) {
             MappingToy.log.log(Level.WARNING, "    Failed: " + e.getMessage(), e);
         }
     }
 
-    private static void startEntry(ZipOutputStream jout, String filePath, Set<String> dirs) throws IOException {
-        int i = filePath.lastIndexOf('/', filePath.length() - 2);
-        if(i != -1) {
-            String dir = filePath.substring(0, i + 1);
-            if (!dirs.contains(dir)) {
-                startEntry(jout, dir, dirs);
-                dirs.add(dir);
+    private static void writeJar(Path target, ClassStore source, Mappings map, SimpleRemapper remapper, RemapCache cache, DigestIndex digests, ExecutorService executor, int compression) throws IOException {
+        try (ZipWriter jout = new ZipWriter(Files.newOutputStream(target), compression)) {
+            // Entries are processed and compressed in parallel, but always written in the order of the input so the output is stable.
+            Deque<Future<ZipWriter.Block>> pending = new ArrayDeque<>();
+            try {
+                for (String name : source.getNames()) {
+                    if (pending.size() >= MAX_PENDING)
+                        jout.write(Utils.getFuture(pending.poll()));
+                    pending.add(executor.submit(() -> processEntry(source, name, map, remapper, cache, digests, compression)));
+                }
+
+                while (!pending.isEmpty())
+                    jout.write(Utils.getFuture(pending.poll()));
+            } finally {
+                pending.forEach(f -> f.cancel(true));
+            }
+        }
+    }
+
+    /*
+     * Same as writing the jar, but each entry goes to the blob store and we only write the manifest.
+     * Entries already in the store from another version are hashed and skipped, never compressed.
+     * The manifest is only written once every object is in place, so a failure leaves nothing behind.
+     */
+    private static void writeBlobs(Path target, ClassStore source, Mappings map, SimpleRemapper remapper, RemapCache cache, DigestIndex digests, BlobStore blobs, ExecutorService executor, int compression) throws IOException {
+        Map<String, String> entries = new LinkedHashMap<>();
+        Deque<Future<String[]>> pending = new ArrayDeque<>();
+        try {
+            for (String name : source.getNames()) {
+                if (pending.size() >= MAX_PENDING)
+                    addBlob(entries, Utils.getFuture(pending.poll()));
+                pending.add(executor.submit(() -> storeEntry(source, name, map, remapper, cache, digests, blobs, compression)));
+            }
+
+            while (!pending.isEmpty())
+                addBlob(entries, Utils.getFuture(pending.poll()));
+        } finally {
+            pending.forEach(f -> f.cancel(true));
+        }
+        BlobStore.writeManifest(target, entries);
+    }
+
+    private static void addBlob(Map<String, String> entries, String[] entry) throws IOException {
+        if (entries.containsKey(entry[0]))
+            throw new IOException("duplicate entry: " + entry[0]);
+        entries.put(entry[0], entry[1]);
+    }
+
+    private static ZipWriter.Block processEntry(ClassStore source, String name, Mappings map, SimpleRemapper remapper, RemapCache cache, DigestIndex digests, int compression) throws IOException {
+        if (name.endsWith("/"))
+            return ZipWriter.directory(name);
+        if (!name.endsWith("MANIFEST.MF") && !name.endsWith(".class"))
+            return source.getBlock(name, name, compression);
+
+        Map.Entry<String, byte[]> entry = remapEntry(source, name, map, remapper, cache, digests);
+        return ZipWriter.compress(entry.getKey(), entry.getValue(), compression);
+    }
+
+    // Output name and object hash of an entry, directories have no object.
+    private static String[] storeEntry(ClassStore source, String name, Mappings map, SimpleRemapper remapper, RemapCache cache, DigestIndex digests, BlobStore blobs, int compression) throws IOException {
+        if (name.endsWith("/"))
+            return new String[] { name, null };
+        // Same block the jar would get, so a materialized jar matches it
+        if (!name.endsWith("MANIFEST.MF") && !name.endsWith(".class"))
+            return new String[] { name, blobs.put(source.getBlock(name, name, compression)) };
+
+        Map.Entry<String, byte[]> entry = remapEntry(source, name, map, remapper, cache, digests);
+        return new String[] { entry.getKey(), blobs.put(entry.getValue(), compression) };
+    }
+
+    // Renames a single entry, giving its new name and data. Lets renamed jars be read without writing them out.
+    public static Map.Entry<String, byte[]> renameEntry(ClassStore source, String name, Mappings map) throws IOException {
+        return remapEntry(source, name, map, new SimpleRemapper(map), null, null);
+    }
+
+    private static Map.Entry<String, byte[]> remapEntry(ClassStore source, String name, Mappings map, SimpleRemapper remapper, RemapCache cache, DigestIndex digests) throws IOException {
+        if (name.endsWith("MANIFEST.MF")) {
+            BufferedReader buf = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(source.get(name))));
+            ByteArrayOutputStream bao = new ByteArrayOutputStream();
+            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(bao));
+
+            String line = null;
+            boolean lastSpace = false;
+            while((line = buf.readLine()) != null) {
+                if (line.isEmpty()) {
+                    if (!lastSpace) {
+                        out.write("\r\n");
+                        lastSpace = true;
+                    }
+                } else if (line.startsWith("Name:")) {
+                    buf.readLine(); //Kill the SHA1-Digest line
+                    buf.readLine(); //kill the empty line
+                } else {
+                    out.write(line);
+                    out.write("\r\n");
+                    lastSpace = false;
+                }
             }
+
+            out.flush();
+            return new AbstractMap.SimpleEntry<>(name, bao.toByteArray());
+        } else if (name.endsWith(".class")) {
+            byte[] data = source.get(name);
+            String hash = cache == null && digests == null ? null : HashFunction.SHA1.hash(data);
+            Map.Entry<String, byte[]> ret = cache != null ? remapCached(name, data, hash, map, cache) :
+                new AbstractMap.SimpleEntry<>(map.remapClass(name.substring(0, name.length() - 6)) + ".class", remapClass(data, remapper));
+            if (digests != null)
+                digests.add(name.substring(0, name.length() - 6), hash, ret.getKey().substring(0, ret.getKey().length() - 6), HashFunction.SHA1.hash(ret.getValue()));
+            return ret;
+        } else {
+            return new AbstractMap.SimpleEntry<>(name, source.get(name));
         }
-        jout.putNextEntry(Utils.getStableEntry(filePath));
+    }
+
+    private static byte[] remapClass(byte[] data, Remapper remapper) {
+        ClassReader reader = new ClassReader(data);
+        ClassWriter writer = new ClassWriter(0);
+        ClassVisitor visitor = new ClassRemapper(writer, remapper);
+        reader.accept(visitor, 0);
+        return writer.toByteArray();
+    }
+
+    /*
+     * Reuses the class from an earlier version if neither it nor any mapping it uses has changed.
+     * Otherwise remaps it while recording what it looks up, and stores that for the next version.
+     */
+    private static Map.Entry<String, byte[]> remapCached(String name, byte[] data, String hash, Mappings map, RemapCache cache) {
+        Map.Entry<String, byte[]> ret = cache.get(hash, map);
+        if (ret != null)
+            return ret;
+
+        RemapCache.Recorder recorder = new RemapCache.Recorder(map);
+        byte[] remapped = remapClass(data, recorder);
+        String mapped = recorder.map(name.substring(0, name.length() - 6)) + ".class";
+        try {
+            cache.put(hash, recorder, mapped, remapped);
+        } catch (IOException e) {
+            MappingToy.log.info("    Failed to cache " + name + ": " + e.getMessage());
+        }
+        return new AbstractMap.SimpleEntry<>(mapped, remapped);
     }
 
     private static class SimpleRemapper extends Remapper {
-        private IMappingFile map;
-        private SimpleRemapper(IMappingFile map) {
+        private Mappings map;
+        private SimpleRemapper(Mappings map) {
             this.map = map;
         }
 
         @Override
         public String mapMethodName(final String owner, final String name, final String descriptor) {
-            IClass cls = map.getClass(owner);
-            return cls == null ? name : cls.remapMethod(name, descriptor);
+            return map.remapMethod(owner, name, descriptor);
         }
 
         @Override
         public String mapFieldName(final String owner, final String name, final String descriptor) {
-            IClass cls = map.getClass(owner);
-            return cls == null ? name : cls.remapField(name);
-        }
-
-        @Override
-        public String mapPackageName(final String name) {
-          return map.remapPackage(name);
+            return map.remapField(owner, name);
         }
 
         @Override
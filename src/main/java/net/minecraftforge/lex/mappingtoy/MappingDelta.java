@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) LexManos
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+package net.minecraftforge.lex.mappingtoy;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.logging.Level;
+
+import net.minecraftforge.srgutils.MinecraftVersion;
+
+/*
+ * What changed in a version's mappings since the version before it, written to mappings_delta.json.
+ *
+ * Everything is matched up by its deobfuscated name, classes by name, fields by class and name,
+ * methods by class, name and descriptor. Renamed means the deobfuscated name stayed the same but
+ * the obfuscated name it maps to changed.
+ *
+ * The lookups are done with the Mappings' own hash tables, and when walking a run of versions each
+ * one's mappings are kept for the next, so every version is only loaded once.
+ */
+public class MappingDelta {
+    public static final String FILENAME = "mappings_delta.json";
+
+    String from;
+    String to;
+    Changes classes = new Changes();
+    Changes fields = new Changes();
+    Changes methods = new Changes();
+
+    static class Changes {
+        List<String> added = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        List<Renamed> renamed = new ArrayList<>();
+
+        private void sort() {
+            added.sort(null);
+            removed.sort(null);
+            renamed.sort(Comparator.comparing(r -> r.name));
+        }
+    }
+
+    static class Renamed {
+        String name;
+        String from;
+        String to;
+
+        private Renamed(String name, String from, String to) {
+            this.name = name;
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    /*
+     * Writes the delta of every selected version against the version before it in the full list,
+     * skipping back over any versions that don't have client mappings.
+     */
+    public static void makeDeltas(Path output, NavigableSet<MinecraftVersion> all, Collection<MinecraftVersion> selected, boolean force) {
+        MinecraftVersion lastVersion = null;
+        Mappings lastMappings = null;
+
+        for (MinecraftVersion ver : selected) {
+            Path current = getMappings(output, ver);
+            Path target = output.resolve(ver.toString()).resolve(FILENAME);
+            if (current == null || (!force && Files.isRegularFile(target)))
+                continue;
+
+            MinecraftVersion prev = null;
+            for (MinecraftVersion candidate : all.headSet(ver, false).descendingSet()) {
+                if (getMappings(output, candidate) != null) {
+                    prev = candidate;
+                    break;
+                }
+            }
+            if (prev == null)
+                continue;
+
+            MappingToy.log.info("Delta " + prev + " -> " + ver);
+            try {
+                Mappings from = prev.equals(lastVersion) ? lastMappings : new CachedMappings(getMappings(output, prev)).getForward();
+                Mappings to = new CachedMappings(current).getForward();
+                Utils.writeJson(target, compare(prev.toString(), from, ver.toString(), to));
+                lastVersion = ver;
+                lastMappings = to;
+            } catch (IOException e) {
+                MappingToy.log.log(Level.WARNING, "  Failed: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    private static Path getMappings(Path output, MinecraftVersion version) {
+        Path ret = output.resolve(version.toString()).resolve(DownloadType.CLIENT_MAPPINGS.getFilename());
+        return Files.isRegularFile(ret) ? ret : null;
+    }
+
+    public static MappingDelta compare(String fromName, Mappings from, String toName, Mappings to) {
+        MappingDelta ret = new MappingDelta();
+        ret.from = fromName;
+        ret.to = toName;
+
+        for (int cls = 0; cls < to.getClassCount(); cls++) {
+            String name = to.getClassOriginal(cls);
+            int old = from.findClass(name);
+            if (old == -1) {
+                ret.classes.added.add(name);
+                continue;
+            }
+            if (!from.getClassMapped(old).equals(to.getClassMapped(cls)))
+                ret.classes.renamed.add(new Renamed(name, from.getClassMapped(old), to.getClassMapped(cls)));
+
+            for (int fld = to.getFieldStart(cls); fld < to.getFieldEnd(cls); fld++) {
+                String key = name + '.' + to.getFieldOriginal(fld);
+                int oldFld = from.findField(old, to.getFieldOriginal(fld));
+                if (oldFld == -1)
+                    ret.fields.added.add(key);
+                else if (!from.getFieldMapped(oldFld).equals(to.getFieldMapped(fld)))
+                    ret.fields.renamed.add(new Renamed(key, from.getFieldMapped(oldFld), to.getFieldMapped(fld)));
+            }
+
+            for (int mtd = to.getMethodStart(cls); mtd < to.getMethodEnd(cls); mtd++) {
+                String key = name + '.' + to.getMethodOriginal(mtd) + to.getMethodDescriptor(mtd);
+                int oldMtd = from.findMethod(old, to.getMethodOriginal(mtd), to.getMethodDescriptor(mtd));
+                if (oldMtd == -1)
+                    ret.methods.added.add(key);
+                else if (!from.getMethodMapped(oldMtd).equals(to.getMethodMapped(mtd)))
+                    ret.methods.renamed.add(new Renamed(key, from.getMethodMapped(oldMtd), to.getMethodMapped(mtd)));
+            }
+        }
+
+        // Removals are whatever of the old version we can't find in the new one
+        for (int cls = 0; cls < from.getClassCount(); cls++) {
+            String name = from.getClassOriginal(cls);
+            int cur = to.findClass(name);
+            if (cur == -1) {
+                ret.classes.removed.add(name);
+                continue;
+            }
+
+            for (int fld = from.getFieldStart(cls); fld < from.getFieldEnd(cls); fld++) {
+                if (to.findField(cur, from.getFieldOriginal(fld)) == -1)
+                    ret.fields.removed.add(name + '.' + from.getFieldOriginal(fld));
+            }
+
+            for (int mtd = from.getMethodStart(cls); mtd < from.getMethodEnd(cls); mtd++) {
+                if (to.findMethod(cur, from.getMethodOriginal(mtd), from.getMethodDescriptor(mtd)) == -1)
+                    ret.methods.removed.add(name + '.' + from.getMethodOriginal(mtd) + from.getMethodDescriptor(mtd));
+            }
+        }
+
+        ret.classes.sort();
+        ret.fields.sort();
+        ret.methods.sort();
+        return ret;
+    }
+}
@@ -8,19 +8,28 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
+import java.util.Deque;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import java.util.TreeSet;
-import java.util.function.Function;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.FileHandler;
 import java.util.logging.Formatter;
 import java.util.logging.Handler;
@@ -28,22 +37,18 @@ import java.util.logging.Level;
 import java.util.logging.LogRecord;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.zip.Deflater;
 import joptsimple.OptionParser;
 import joptsimple.OptionSet;
 import joptsimple.OptionSpec;
 import joptsimple.util.PathConverter;
 import net.minecraftforge.lex.mappingtoy.VersionJson.Download;
 import net.minecraftforge.lex.mappingtoy.VersionJson.DownloadInfo;
-import net.minecraftforge.mergetool.AnnotationVersion;
-import net.minecraftforge.mergetool.Merger;
 import net.minecraftforge.srgutils.IMappingFile;
-import net.minecraftforge.srgutils.IMappingFile.IClass;
-import net.minecraftforge.srgutils.IMappingFile.IField;
-import net.minecraftforge.srgutils.IMappingFile.IMethod;
 import net.minecraftforge.srgutils.MinecraftVersion;
 
 import static net.minecraftforge.lex.mappingtoy.JarMetadata.makeMetadata;
-import static net.minecraftforge.lex.mappingtoy.JarRenamer.makeMappedJar;
 
 public class MappingToy {
     public static final Logger log = Logger.getLogger("MappingToy");
@@ -57,6 +62,20 @@ public class MappingToy {
         OptionSpec<Void>    libsO      = parser.accepts("libs");
         OptionSpec<Path>    logO       = parser.accepts("log").withRequiredArg().withValuesConvertedBy(new PathConverter());
         OptionSpec<Void>    forceO     = parser.accepts("force", "Force rebuilding of everything even if files already exist, Mainly for debugging");
+        OptionSpec<Integer> threadsO   = parser.accepts("threads", "Number of worker threads").withRequiredArg().ofType(Integer.class).defaultsTo(Runtime.getRuntime().availableProcessors());
+        OptionSpec<String>  compressO  = parser.accepts("compression", "Compression level for remapped jars, 0-9 or 'stored'").withRequiredArg().defaultsTo("default");
+        OptionSpec<String>  shardsO    = parser.accepts("meta-shards", "Split metadata into shards with an index: 'package', a number of classes per shard, or 'single'").withRequiredArg().defaultsTo("single");
+        OptionSpec<Void>    inMemoryO  = parser.accepts("in-memory", "Hand the merged classes directly to the renamer and metadata stages instead of re-reading the joined jars");
+        OptionSpec<Void>    interO     = parser.accepts("intermediate", "Still write joined_a.jar/joined.jar when using --in-memory");
+        OptionSpec<Void>    blobsO     = parser.accepts("blob-store", "Store renamed jars once per unique entry in a shared content addressed store, writing a manifest per jar instead");
+        OptionSpec<Void>    materialO  = parser.accepts("materialize", "Build real jars from the blob store manifests of the selected versions, then exit");
+        OptionSpec<Void>    cacheO     = parser.accepts("remap-cache", "Reuse remapped classes from earlier versions when neither the class nor the mappings it uses changed");
+        OptionSpec<String>  diffO      = parser.accepts("diff", "Compare the class digests of two already processed versions, then exit. Use twice: --diff <from> --diff <to>").withRequiredArg();
+        OptionSpec<String>  queryO     = parser.accepts("query", "Look up which versions have a class, field or method name, ending with * matches every name starting with it, then exit").withRequiredArg();
+        OptionSpec<Long>    budgetO    = parser.accepts("heap-budget", "Estimated heap in MB that work running at once may use, defaults to 80% of the max heap").withRequiredArg().ofType(Long.class);
+        OptionSpec<Integer> parallelO  = parser.accepts("parallel-versions", "Number of versions to process at once, still limited by --heap-budget").withRequiredArg().ofType(Integer.class).defaultsTo(1);
+        OptionSpec<Void>    leaseO     = parser.accepts("lease", "Claim versions through lease files in the output, so several processes sharing it split the versions between them");
+        OptionSpec<Long>    leaseTimeO = parser.accepts("lease-timeout", "Seconds without a heartbeat before another process may take over a lease").withRequiredArg().ofType(Long.class).defaultsTo(300L);
 
         OptionSet options = parser.parse(args);
         Set<MinecraftVersion> versions = options.valuesOf(versionO).stream().map(MinecraftVersion::from).collect(Collectors.toCollection(TreeSet::new));
@@ -65,6 +84,15 @@ public class MappingToy {
         boolean      all          = options.has(allO);
         boolean      libs         = all || options.has(libsO);
         boolean      force        = options.has(forceO);
+        int          threads      = Math.max(1, options.valueOf(threadsO));
+        int          compression  = parseCompression(options.valueOf(compressO));
+        int          shards       = MetadataShards.parse(options.valueOf(shardsO));
+        boolean      inMemory     = options.has(inMemoryO);
+        boolean      intermediate = !inMemory || options.has(interO);
+        RemapCache   cache        = options.has(cacheO) ? new RemapCache(output.resolve("cache").resolve("remap")) : null;
+        long         budget       = options.has(budgetO) ? options.valueOf(budgetO) * 1024 * 1024 : Runtime.getRuntime().maxMemory() / 5 * 4;
+        int          parallel     = Math.max(1, options.valueOf(parallelO));
+        BlobStore    blobs        = options.has(blobsO) || options.has(materialO) ? new BlobStore(output.resolve("objects")) : null;
 
         if (!Files.isDirectory(minecraft)) {
             System.out.println("Specificed --mc directory does not exist: " + minecraft);
@@ -112,6 +140,25 @@ public class MappingToy {
             @Override public void close() throws SecurityException {}
         });
 
+        if (options.has(diffO)) {
+            List<String> diff = options.valuesOf(diffO);
+            if (diff.size() != 2) {
+                log.info("--diff needs exactly two versions");
+                return;
+            }
+            DigestIndex.diff(output, diff.get(0), diff.get(1));
+            return;
+        }
+
+        if (options.has(queryO)) {
+            for (String query : options.valuesOf(queryO)) {
+                log.info("Query " + query + ":");
+                for (String line : SymbolIndex.query(output, query))
+                    log.info("  " + line);
+            }
+            return;
+        }
+
         log.info("The mappings, and data downloaded by this project is (c) Microsoft Corporation. All rights reserved.");
         log.info("That information is provided \"as-is\" and you bear the risk of using it.");
         log.info("This information does not provide you with any legal rights to any intellectual property in any Microsoft product.");
@@ -120,82 +167,186 @@ public class MappingToy {
         log.info("==================================================================================================================");
         log.info("This means you can only use this program for reference purposes. Please don't be an ass. -Lex");
         log.info("");
-        log.info("Output:    " + output);
-        log.info("Minecraft: " + minecraft);
-        log.info("All:       " + all);
-        log.info("Libs:      " + libs);
-        log.info("Versions:  " + (versions.isEmpty() ? "All" : versions));
-        log.info("Force:     " + force);
+        log.info("Output:            " + output);
+        log.info("Minecraft:         " + minecraft);
+        log.info("All:               " + all);
+        log.info("Libs:              " + libs);
+        log.info("Versions:          " + (versions.isEmpty() ? "All" : versions));
+        log.info("Force:             " + force);
+        log.info("Threads:           " + threads);
+        log.info("In Memory:         " + inMemory);
+        log.info("Meta Shards:       " + MetadataShards.describe(shards));
+        log.info("Blob Store:        " + (blobs != null));
+        log.info("Remap Cache:       " + (cache != null));
+        log.info("Heap Budget:       " + (budget >> 20) + "MB");
+        log.info("Parallel Versions: " + parallel);
+        log.info("Lease:             " + (options.has(leaseO) ? options.valueOf(leaseTimeO) + "s" : "false"));
         log.info("");
 
-        Files.createDirectories(output);
-
-        ManifestJson manifest_json = downloadLauncherManifest(output);
-        if (manifest_json == null)
+        ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread ret = new Thread(r, "MappingToy-Worker");
+            ret.setDaemon(true);
+            return ret;
+        });
+        // The governor decides how many of these actually get to do heavy work at once
+        ExecutorService versionExecutor = Executors.newFixedThreadPool(parallel, r -> {
+            Thread ret = new Thread(r, "MappingToy-Version");
+            ret.setDaemon(true);
+            return ret;
+        });
+        VersionLeases leases = null;
+        if (options.has(leaseO)) {
+            leases = new VersionLeases(output, Math.max(1, options.valueOf(leaseTimeO)) * 1000);
+            log.info("Lease Owner:       " + leases.getOwner());
+        }
+        Workspace workspace = Workspace.builder(output)
+            .minecraft(minecraft).all(all).libs(libs).force(force).compression(compression)
+            .inMemory(inMemory).intermediate(intermediate).metaShards(shards)
+            .blobStore(blobs).remapCache(cache).heapBudget(budget)
+            .workers(executor).async(versionExecutor).leases(leases)
+            .build();
+        ManifestJson manifest_json;
+        try {
+            manifest_json = workspace.getManifest().join();
+        } catch (CompletionException e) {
+            log.log(Level.SEVERE, "Failed to load the launcher manifest: " + e.getCause().getMessage(), e.getCause());
+            shutdown(workspace, leases, versionExecutor, executor);
+            // Nothing was done, scripts running us need to know. Only once everything is cleaned up, as exit never returns.
+            System.exit(1);
             return;
+        }
 
-        if (versions.isEmpty())
-            versions.addAll(manifest_json.getEntries().keySet());
+        try {
+            if (versions.isEmpty())
+                versions.addAll(manifest_json.getEntries().keySet());
 
-        for (MinecraftVersion ver : versions) {
-            log.log(Level.INFO, "Processing " + ver.toString() + ":");
+            if (options.has(materialO)) {
+                for (MinecraftVersion ver : versions) {
+                    log.info("Materializing " + ver + ":");
+                    blobs.materializeAll(output.resolve(ver.toString()), force);
+                }
+                log.info("Finished");
+                return;
+            }
 
-            ManifestJson.Entry mainEntry = manifest_json.getVersion(ver);
-            if (mainEntry == null || mainEntry.url == null) {
-                log.log(Level.INFO, "  No entry in Launcher Manifest");
-                continue;
+            // Only as many versions are started as can run at once, so with leases we never claim more than we're working on.
+            // With one at a time that also keeps the log in version order.
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (MinecraftVersion ver : versions) {
+                while (futures.size() >= parallel)
+                    waitForAny(futures);
+                futures.add(workspace.process(ver));
             }
+            futures.forEach(MappingToy::waitFor);
+            futures.clear();
+
+            // Versions another process held get another go, once a lease left by one that died would have gone stale
+            for (MinecraftVersion ver : workspace.getSkipped()) {
+                while (futures.size() >= parallel)
+                    waitForAny(futures);
+                futures.add(workspace.retry(ver));
+            }
+            futures.forEach(MappingToy::waitFor);
 
-            Path root = output.resolve(ver.toString());
-            Files.createDirectories(root);
+            try {
+                workspace.updateIndexes(versions).join();
+            } catch (CompletionException e) {
+                log.log(Level.WARNING, "Failed to update indexes: " + e.getCause().getMessage(), e.getCause());
+            }
+        } finally {
+            shutdown(workspace, leases, versionExecutor, executor);
+        }
 
-            VersionJson manifest = downloadVersionJson(root, mainEntry.url);
-            if (manifest == null)
-                continue;
+        log.info("Finished");
+    }
 
-            Set<DownloadType> downloaded = downloadMinecraftFiles(root, manifest.getDownloads());
+    private static void shutdown(Workspace workspace, VersionLeases leases, ExecutorService versionExecutor, ExecutorService executor) {
+        workspace.close();
+        if (leases != null)
+            leases.close();
+        versionExecutor.shutdownNow();
+        executor.shutdownNow();
+    }
 
-            IMappingFile clientMap = downloaded.contains(DownloadType.CLIENT_MAPPINGS) ? IMappingFile.load(root.resolve(DownloadType.CLIENT_MAPPINGS.getFilename()).toFile()) : null;
-            IMappingFile serverMap = downloaded.contains(DownloadType.SERVER_MAPPINGS) ? IMappingFile.load(root.resolve(DownloadType.SERVER_MAPPINGS.getFilename()).toFile()) : null;
-            boolean mergeable = canMerge(clientMap, serverMap);
+    private static void waitFor(CompletableFuture<?> future) {
+        try {
+            future.join();
+        } catch (CompletionException e) {
+            log.log(Level.WARNING, "  Failed: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
 
-            if (mergeable) {
-                writeMappings(root, clientMap, "joined", all, force);
-                makeJoinedJar(root, ver, clientMap, true, force);
-                makeMappedJar(root, "joined_o_to_n.tsrg", "joined_a", force);
-                if (all) {
-                    makeJoinedJar(root, ver, clientMap, false, force);
-                    makeMappedJar(root, "joined_o_to_n.tsrg", "joined", force);
-                }
+    // Waits for at least one to finish, and removes every finished one.
+    private static void waitForAny(List<CompletableFuture<Void>> futures) {
+        try {
+            CompletableFuture.anyOf(futures.toArray(new CompletableFuture<?>[0])).join();
+        } catch (CompletionException e) {
+            // Logged by waitFor below
+        }
+        for (Iterator<CompletableFuture<Void>> itr = futures.iterator(); itr.hasNext(); ) {
+            CompletableFuture<Void> future = itr.next();
+            if (future.isDone()) {
+                waitFor(future);
+                itr.remove();
             }
+        }
+    }
 
-            if (!mergeable || all){
-                if (clientMap != null) {
-                    writeMappings(root, clientMap, "client", all, force);
-                    makeMappedJar(root, "client_o_to_n.tsrg", "client", force);
-                }
-                if (serverMap != null) {
-                    writeMappings(root, serverMap, "server", all, force);
-                    makeMappedJar(root, "server_o_to_n.tsrg", "server", force);
-                }
-            }
+    /*
+     * Metadata of the renamed jar, which only exists as a manifest when using the blob store.
+     */
+    static void makeMappedMetadata(Path root, Collection<Path> libraries, CachedMappings mappings, boolean force, BlobStore blobs, int shards, ExecutorService executor) {
+        if (blobs == null) {
+            makeMetadata(root, libraries, mappings, "joined_a_n", false, force, shards, executor);
+            return;
+        }
 
-            Collection<Path> libraries = Collections.emptyList();
-            if (libs) {
-                libraries = downloadLauncherFiles(root, minecraft, ver, manifest);
-            }
+        if (!force && JarMetadata.exists(root, "joined_a_n", shards))
+            return;
 
-            if (mergeable) {
-                makeMetadata(root, libraries, clientMap, "joined_a", true, force);
-                if (all)
-                    makeMetadata(root, libraries, clientMap, "joined_a_n", false, force);
-            }
+        Path manifest = root.resolve(JarRenamer.getTarget("joined_a", blobs));
+        if (!Files.isRegularFile(manifest))
+            return;
+
+        try (ClassStore source = blobs.open(manifest)) {
+            makeMetadata(root, source, libraries, mappings, "joined_a_n", false, force, shards, executor);
+        } catch (IOException e) {
+            log.log(Level.SEVERE, "Failed to load: " + manifest.toString(), e);
         }
+    }
 
-        log.info("Finished");
+    /*
+     * Rough peak heap use of a version. Stages run one after another, so it's the biggest stage plus
+     * what's held for the whole version: both directions of the parsed mappings, and with --in-memory
+     * the merged classes up to what a store keeps before spilling.
+     */
+    static long estimateMemory(Path root, Collection<Path> libraries, boolean inMemory) {
+        long client = MemoryGovernor.size(root.resolve(DownloadType.CLIENT.getFilename()));
+        long server = MemoryGovernor.size(root.resolve(DownloadType.SERVER.getFilename()));
+        long mappings = MemoryGovernor.size(root.resolve(DownloadType.CLIENT_MAPPINGS.getFilename())) + MemoryGovernor.size(root.resolve(DownloadType.SERVER_MAPPINGS.getFilename()));
+        long libs = libraries.stream().mapToLong(MemoryGovernor::size).sum();
+
+        long merge = (client + server) * 3; // Both inputs' classes in flight, and the merged result
+        long rename = client * 2;           // Remapped classes waiting to be compressed and written
+        long meta = (client + libs) * 6;    // Every class is parsed into a tree, which is several times its compressed size
+        long ret = Math.max(merge, Math.max(rename, meta)) + mappings * 2;
+        if (inMemory)
+            ret += Math.min(ClassStore.getDefaultLimit(), client * 3);
+        return ret;
+    }
+
+    private static int parseCompression(String value) {
+        if ("stored".equalsIgnoreCase(value))
+            return ZipWriter.STORED;
+        if ("default".equalsIgnoreCase(value))
+            return Deflater.DEFAULT_COMPRESSION;
+        int level = Integer.parseInt(value);
+        if (level < 0 || level > 9)
+            throw new IllegalArgumentException("Invalid compression level: " + value);
+        return level;
     }
 
-    private static ManifestJson downloadLauncherManifest(Path output) {
+    static ManifestJson downloadLauncherManifest(Path output) {
         Path manifest = output.resolve("launcher_manifest.json");
         if (!Utils.downloadFileEtag(manifest, ManifestJson.MOJANG_URL, false, "Downloading: ")) {
             log.info("    Failed, Exiting");
@@ -212,7 +363,7 @@ public class MappingToy {
         }
     }
 
-    private static VersionJson downloadVersionJson(Path output, URL url) {
+    static VersionJson downloadVersionJson(Path output, URL url) {
         Path target = output.resolve("version.json");
         if (!Utils.downloadFileEtag(target, url, false, "  ")) {
             log.info("    Failed, Exiting");
@@ -227,7 +378,7 @@ public class MappingToy {
         }
     }
 
-    private static Set<DownloadType> downloadMinecraftFiles(Path output, Map<String, Download> downloads) {
+    static Set<DownloadType> downloadMinecraftFiles(Path output, Map<String, Download> downloads) {
         Set<DownloadType> ret = new HashSet<>();
         for (DownloadType type : DownloadType.getValues()) {
             Path target = output.resolve(type.getFilename());
@@ -254,87 +405,309 @@ public class MappingToy {
         return ret;
     }
 
-    private static boolean canMerge(IMappingFile client, IMappingFile server) {
-        //Test if the client is a strict super-set of server. If so the client mappings can be used for the joined jar
-        final Function<IField,  String> fldToString = fld -> fld.getOriginal() + " " + fld.getDescriptor() + " -> " + fld.getMapped() + " " + fld.getMappedDescriptor();
-        final Function<IMethod, String> mtdToString = mtd -> mtd.getOriginal() + " " + mtd.getDescriptor() + " -> " + mtd.getMapped() + " " + mtd.getMappedDescriptor();
+    /*
+     * The check walks every member of both mappings, so cache the answer next to them, keyed by
+     * the hashes of both mapping files so it is redone if either changes.
+     */
+    static boolean canMerge(Path root, CachedMappings client, CachedMappings server) throws IOException {
+        if (client == null || server == null)
+            return false;
+
+        Path cache = root.resolve("mergeable.txt");
+        // Without the hashes there's no cache, but the mappings can still be compared
+        String key = null;
+        try {
+            key = client.getHash() + ' ' + server.getHash() + ' ';
+        } catch (IOException e) {
+            log.info("  " + cache.getFileName() + " Failed: " + e.getMessage());
+        }
 
-        for (IClass clsS : server.getClasses()) {
-            IClass clsC = client.getClass(clsS.getOriginal());
-            if (clsC == null || !clsS.getMapped().equals(clsC.getMapped()))
-                return false;
+        if (key != null && Files.isRegularFile(cache)) {
+            try {
+                String line = new String(Files.readAllBytes(cache), StandardCharsets.UTF_8).trim();
+                if (line.startsWith(key))
+                    return Boolean.parseBoolean(line.substring(key.length()));
+            } catch (IOException e) {
+                log.info("  " + cache.getFileName() + " Failed: " + e.getMessage());
+            }
+        }
 
-            Set<String> fldsS = clsS.getFields().stream().map(fldToString).collect(Collectors.toCollection(HashSet::new));
-            Set<String> fldsC = clsC.getFields().stream().map(fldToString).collect(Collectors.toCollection(HashSet::new));
-            Set<String> mtdsS = clsS.getMethods().stream().map(mtdToString).collect(Collectors.toCollection(HashSet::new));
-            Set<String> mtdsC = clsC.getMethods().stream().map(mtdToString).collect(Collectors.toCollection(HashSet::new));
+        boolean ret = canMerge(client.getForward(), server.getForward());
 
-            fldsS.removeAll(fldsC);
-            mtdsS.removeAll(mtdsC);
+        if (key != null) {
+            try {
+                byte[] data = (key + ret).getBytes(StandardCharsets.UTF_8);
+                Utils.writeAtomic(cache, tmp -> Files.write(tmp, data));
+            } catch (IOException e) {
+                log.info("  " + cache.getFileName() + " Failed: " + e.getMessage());
+            }
+        }
+        return ret;
+    }
 
-            if (!fldsS.isEmpty() || !mtdsS.isEmpty())
+    private static boolean canMerge(Mappings client, Mappings server) {
+        //Test if the client is a strict super-set of server. If so the client mappings can be used for the joined jar
+        //Members are looked up directly, and the classes are checked in parallel stopping at the first one that differs.
+        return IntStream.range(0, server.getClassCount()).parallel().allMatch(clsS -> {
+            int clsC = client.findClass(server.getClassOriginal(clsS));
+            if (clsC == -1 || !server.getClassMapped(clsS).equals(client.getClassMapped(clsC)))
                 return false;
+
+            for (int fldS = server.getFieldStart(clsS); fldS < server.getFieldEnd(clsS); fldS++) {
+                int fldC = client.findField(clsC, server.getFieldOriginal(fldS));
+                if (fldC == -1 ||
+                    !Objects.equals(server.getFieldDescriptor(fldS), client.getFieldDescriptor(fldC)) ||
+                    !server.getFieldMapped(fldS).equals(client.getFieldMapped(fldC)) ||
+                    !Objects.equals(server.getFieldMappedDescriptor(fldS), client.getFieldMappedDescriptor(fldC)))
+                    return false;
+            }
+
+            for (int mtdS = server.getMethodStart(clsS); mtdS < server.getMethodEnd(clsS); mtdS++) {
+                int mtdC = client.findMethod(clsC, server.getMethodOriginal(mtdS), server.getMethodDescriptor(mtdS));
+                if (mtdC == -1 ||
+                    !server.getMethodMapped(mtdS).equals(client.getMethodMapped(mtdC)) ||
+                    !server.getMethodMappedDescriptor(mtdS).equals(client.getMethodMappedDescriptor(mtdC)))
+                    return false;
+            }
+
+            return true;
+        });
+    }
+
+    /*
+     * Every file a complete run with these settings leaves in the version's folder, used to tell if
+     * it needs to be processed at all next time.
+     */
+    static List<String> expectedOutputs(Set<DownloadType> downloaded, boolean mergeable, boolean all, boolean intermediate, BlobStore blobs, int shards) {
+        List<String> ret = new ArrayList<>();
+        ret.add("version.json");
+        for (DownloadType type : downloaded)
+            ret.add(type.getFilename());
+        if (downloaded.contains(DownloadType.CLIENT_MAPPINGS) || downloaded.contains(DownloadType.SERVER_MAPPINGS))
+            ret.add(SymbolIndex.FILENAME);
+
+        IMappingFile.Format[] formats = all ? IMappingFile.Format.values() : new IMappingFile.Format[]{ IMappingFile.Format.TSRG };
+        if (mergeable) {
+            addMappingOutputs(ret, "joined", formats);
+            addRenamedOutputs(ret, "joined_a", blobs);
+            addMetadataOutputs(ret, "joined_a", shards);
+            if (intermediate)
+                ret.add("joined_a.jar");
+            if (all) {
+                addRenamedOutputs(ret, "joined", blobs);
+                addMetadataOutputs(ret, "joined_a_n", shards);
+                if (intermediate)
+                    ret.add("joined.jar");
+            }
         }
 
-        return true;
+        if (!mergeable || all) {
+            if (downloaded.contains(DownloadType.CLIENT_MAPPINGS)) {
+                addMappingOutputs(ret, "client", formats);
+                if (downloaded.contains(DownloadType.CLIENT))
+                    addRenamedOutputs(ret, "client", blobs);
+            }
+            if (downloaded.contains(DownloadType.SERVER_MAPPINGS)) {
+                addMappingOutputs(ret, "server", formats);
+                if (downloaded.contains(DownloadType.SERVER))
+                    addRenamedOutputs(ret, "server", blobs);
+            }
+        }
+        return ret;
+    }
+
+    static void addRenamedOutputs(List<String> ret, String prefix, BlobStore blobs) {
+        ret.add(JarRenamer.getTarget(prefix, blobs));
+        ret.add(prefix + DigestIndex.SUFFIX);
+    }
+
+    static void addMetadataOutputs(List<String> ret, String type, int shards) {
+        ret.add(JarMetadata.getTarget(type, shards));
+        ret.add(type + ReferenceIndex.SUFFIX);
     }
 
-    private static void writeMappings(Path output, IMappingFile mapping, String prefix, boolean all, boolean force) {
+    static void addMappingOutputs(List<String> ret, String prefix, IMappingFile.Format[] formats) {
+        for (IMappingFile.Format format : formats) {
+            String ext = format.name().toLowerCase(Locale.ENGLISH);
+            ret.add(prefix + "_n_to_o." + ext);
+            ret.add(prefix + "_o_to_n." + ext);
+        }
+    }
+
+    /*
+     * Both directions are written by srgutils, the reversed one on the executor while
+     * this thread writes the forward one.
+     */
+    static void writeMappings(Path output, CachedMappings mappings, String prefix, boolean all, boolean force, ExecutorService executor) {
+        List<Path> n2o = new ArrayList<>();
+        List<Path> o2n = new ArrayList<>();
+        List<IMappingFile.Format> formats = new ArrayList<>();
         for (IMappingFile.Format format : all ? IMappingFile.Format.values() : new IMappingFile.Format[]{ IMappingFile.Format.TSRG }) {
             String ext = format.name().toLowerCase(Locale.ENGLISH);
+            formats.add(format);
+            n2o.add(output.resolve(prefix + "_n_to_o." + ext));
+            o2n.add(output.resolve(prefix + "_o_to_n." + ext));
+        }
 
-            Path target = output.resolve(prefix + "_n_to_o." + ext);
-            if (force || !Files.isRegularFile(target)) {
-                log.info("  " + target.getFileName());
-                try {
-                    mapping.write(target, format, false);
-                } catch (IOException e) {
-                    log.info("  " + target.getFileName() + " Failed: " + e.getMessage());
-                }
+        if (!force && n2o.stream().allMatch(Files::isRegularFile) && o2n.stream().allMatch(Files::isRegularFile))
+            return;
+
+        IMappingFile mapping;
+        try {
+            mapping = IMappingFile.load(mappings.getSource().toFile());
+        } catch (IOException e) {
+            log.info("  " + mappings.getSource().getFileName() + " Failed: " + e.getMessage());
+            return;
+        }
+
+        Future<?> reversed = executor.submit(() -> writeMappings(mapping, formats, o2n, true, force));
+        writeMappings(mapping, formats, n2o, false, force);
+        try {
+            Utils.getFuture(reversed);
+        } catch (IOException e) {
+            log.info("  " + prefix + "_o_to_n Failed: " + e.getMessage());
+        }
+    }
+
+    private static void writeMappings(IMappingFile mapping, List<IMappingFile.Format> formats, List<Path> targets, boolean reversed, boolean force) {
+        for (int x = 0; x < formats.size(); x++) {
+            Path target = targets.get(x);
+            if (!force && Files.isRegularFile(target))
+                continue;
+            log.info("  " + target.getFileName());
+            try {
+                mapping.write(target, formats.get(x), reversed);
+            } catch (IOException e) {
+                log.info("  " + target.getFileName() + " Failed: " + e.getMessage());
             }
+        }
+    }
 
-            target = output.resolve(prefix + "_o_to_n." + ext);
-            if (force || !Files.isRegularFile(target)) {
-                log.info("  " + target.getFileName());
+    static void makeJoinedJar(Path output, MinecraftVersion version, CachedMappings mappings, boolean force, ExecutorService executor) {
+        Path target = output.resolve("joined_a.jar");
+        if (!force && Files.isRegularFile(target))
+            return;
+
+        try (ClassStore merged = mergeJars(output, version, mappings, target, executor)) {
+            if (merged != null)
+                writeJar(target, merged, true, executor);
+        } catch (IOException e) {
+            log.log(Level.WARNING, "    Could not write joined jar: " + target.getFileName() + " " + e.getMessage(), e);
+        }
+    }
+
+    /*
+     * Merges the client and server into a store that can be passed straight to the later stages.
+     * The joined jar is only written to disk if keep is set. If it already exists we just load it.
+     */
+    static ClassStore makeJoinedStore(Path output, MinecraftVersion version, CachedMappings mappings, boolean keep, boolean force, ExecutorService executor) {
+        Path target = output.resolve("joined_a.jar");
+        ClassStore ret = null;
+        try {
+            if (!force && Files.isRegularFile(target))
+                return ClassStore.load(target, false);
+
+            ret = mergeJars(output, version, mappings, target, executor);
+            if (ret != null && keep)
+                writeJar(target, ret, true, executor);
+            return ret;
+        } catch (IOException e) {
+            log.log(Level.WARNING, "    Could not load joined classes: " + target.getFileName() + " " + e.getMessage(), e);
+            if (ret != null) {
                 try {
-                    mapping.write(target, format, true);
-                } catch (IOException e) {
-                    log.info("  " + target.getFileName() + " Failed: " + e.getMessage());
+                    ret.close();
+                } catch (IOException ex) {
+                    e.addSuppressed(ex);
                 }
             }
+            return null;
         }
     }
 
-    private static void makeJoinedJar(Path output, MinecraftVersion version, IMappingFile mappings, boolean annotate, boolean force) {
-        Path target = output.resolve(annotate ? "joined_a.jar" : "joined.jar");
+    /*
+     * The plain joined jar is the annotated one without the side annotations, so build it from that
+     * instead of running the whole merge a second time.
+     */
+    static void makePlainJar(Path output, MinecraftVersion version, boolean force, ExecutorService executor) {
+        Path source = output.resolve("joined_a.jar");
+        Path target = output.resolve("joined.jar");
         if (!force && Files.isRegularFile(target))
             return;
 
+        if (!Files.isRegularFile(source))
+            return;
+
+        try (ClassStore annotated = ClassStore.open(source);
+             ClassStore plain = stripSides(annotated, version, executor)) {
+            writeJar(target, plain, true, executor);
+        } catch (IOException e) {
+            log.log(Level.WARNING, "    Could not make plain joined jar for: " + version + " " + e.getMessage(), e);
+        }
+    }
+
+    static ClassStore stripSides(ClassStore annotated, MinecraftVersion version, ExecutorService executor) throws IOException {
+        SideAnnotation side = SideAnnotation.fromVersion(version.toString());
+        ClassStore ret = new ClassStore();
+        Deque<Map.Entry<String, Future<byte[]>>> pending = new ArrayDeque<>();
+        try {
+            // The merge without annotations never injected the annotation classes either
+            Set<String> injected = new HashSet<>();
+            if (side != null)
+                side.getClasses().forEach(cls -> injected.add(cls + ".class"));
+
+            for (String name : annotated.getNames()) {
+                if (injected.contains(name))
+                    continue;
+                if (pending.size() >= 512)
+                    addStripped(ret, annotated, pending.poll());
+                Future<byte[]> stripped = side != null && name.endsWith(".class") ? executor.submit(() -> side.strip(annotated.get(name))) : null;
+                pending.add(new AbstractMap.SimpleEntry<>(name, stripped));
+            }
+            while (!pending.isEmpty())
+                addStripped(ret, annotated, pending.poll());
+        } catch (IOException | RuntimeException e) {
+            pending.forEach(f -> { if (f.getValue() != null) f.getValue().cancel(true); });
+            ret.close();
+            throw e;
+        }
+        return ret;
+    }
+
+    private static void addStripped(ClassStore store, ClassStore annotated, Map.Entry<String, Future<byte[]>> entry) throws IOException {
+        if (entry.getValue() == null)
+            store.copy(entry.getKey(), annotated);
+        else
+            store.put(entry.getKey(), Utils.getFuture(entry.getValue()));
+    }
+
+    static void writeJar(Path target, ClassStore store, boolean force, ExecutorService executor) throws IOException {
+        if (!force && Files.isRegularFile(target))
+            return;
+        log.info("  " + target.getFileName());
+        store.write(target, Deflater.DEFAULT_COMPRESSION, executor);
+    }
+
+    private static ClassStore mergeJars(Path output, MinecraftVersion version, CachedMappings mappings, Path target, ExecutorService executor) {
         log.info("  " + target.getFileName());
 
-        AnnotationVersion ann = annotate ? AnnotationVersion.fromVersion(version.toString()) : null;
         Path client = output.resolve("client.jar");
         Path server = output.resolve("server.jar");
 
         if (!Files.isRegularFile(client) || !Files.isRegularFile(server))
-            return;
+            return null;
 
         try {
-            Merger merger = new Merger(client.toFile(), server.toFile(), target.toFile());
-            mappings.getClasses().forEach(e -> merger.whitelist(e.getMapped()));
-            if (ann != null)
-                merger.annotate(ann, true);
-            merger.keepData();
-            merger.skipMeta();
-            merger.process();
+            SideAnnotation side = SideAnnotation.fromVersion(version.toString());
+            Mappings map = mappings.getForward();
+            Set<String> whitelist = IntStream.range(0, map.getClassCount()).mapToObj(map::getClassMapped).collect(Collectors.toSet());
+            return new JarMerger(client, server, whitelist, side, executor).merge();
         } catch (IOException e) {
-            log.info("    Could not make joined jar for: " + version + " " + e.getMessage());
-            e.printStackTrace();
+            log.log(Level.WARNING, "    Could not make joined jar for: " + version + " " + e.getMessage(), e);
+            return null;
         }
-        System.gc();
     }
 
-    private static List<Path> downloadLauncherFiles(Path output, Path minecraft, MinecraftVersion version, VersionJson json) {
+    static List<Path> downloadLauncherFiles(Path output, Path minecraft, MinecraftVersion version, VersionJson json) {
         String ver = version.toString();
         Path[][] copy = {
             {output.resolve(DownloadType.CLIENT.getFilename()), minecraft.resolve("versions/" + ver + "/" + ver + ".jar" )},
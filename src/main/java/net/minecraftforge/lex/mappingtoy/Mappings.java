@@ -0,0 +1,462 @@
+/*
+ * Copyright (c) LexManos
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+package net.minecraftforge.lex.mappingtoy;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.UnaryOperator;
+
+/*
+ * Compact, read only model of a ProGuard mapping file, as Mojang publishes for client and server.
+ *
+ * Every name and descriptor is pooled once, and classes, fields and methods are just parallel int
+ * arrays of pool indexes. Members of a class are stored contiguously, so a class only needs the
+ * start of its range. Lookups go through open addressing tables over those arrays, so there are
+ * no per entry objects at all.
+ *
+ * The reverse view shares everything but the lookup tables, so keeping both around is cheap.
+ */
+public class Mappings {
+    private final String[] pool;
+    private final int[] clsOriginal, clsMapped, fieldStart, methodStart;
+    private final int[] fldOwner, fldOriginal, fldMapped, fldDesc, fldMappedDesc;
+    private final int[] mtdOwner, mtdOriginal, mtdMapped, mtdDesc, mtdMappedDesc, mtdStartLine, mtdEndLine;
+
+    private final int[] classTable, fieldTable, methodTable;
+    private Mappings reverse;
+
+    private Mappings(String[] pool, int[] clsOriginal, int[] clsMapped, int[] fieldStart, int[] methodStart,
+            int[] fldOwner, int[] fldOriginal, int[] fldMapped, int[] fldDesc, int[] fldMappedDesc,
+            int[] mtdOwner, int[] mtdOriginal, int[] mtdMapped, int[] mtdDesc, int[] mtdMappedDesc, int[] mtdStartLine, int[] mtdEndLine) {
+        this.pool = pool;
+        this.clsOriginal = clsOriginal;
+        this.clsMapped = clsMapped;
+        this.fieldStart = fieldStart;
+        this.methodStart = methodStart;
+        this.fldOwner = fldOwner;
+        this.fldOriginal = fldOriginal;
+        this.fldMapped = fldMapped;
+        this.fldDesc = fldDesc;
+        this.fldMappedDesc = fldMappedDesc;
+        this.mtdOwner = mtdOwner;
+        this.mtdOriginal = mtdOriginal;
+        this.mtdMapped = mtdMapped;
+        this.mtdDesc = mtdDesc;
+        this.mtdMappedDesc = mtdMappedDesc;
+        this.mtdStartLine = mtdStartLine;
+        this.mtdEndLine = mtdEndLine;
+
+        this.classTable = new int[tableSize(clsOriginal.length)];
+        for (int x = 0; x < clsOriginal.length; x++)
+            insert(classTable, pool[clsOriginal[x]].hashCode(), x);
+
+        this.fieldTable = new int[tableSize(fldOriginal.length)];
+        for (int x = 0; x < fldOriginal.length; x++)
+            insert(fieldTable, hash(fldOwner[x], pool[fldOriginal[x]], null), x);
+
+        this.methodTable = new int[tableSize(mtdOriginal.length)];
+        for (int x = 0; x < mtdOriginal.length; x++)
+            insert(methodTable, hash(mtdOwner[x], pool[mtdOriginal[x]], pool[mtdDesc[x]]), x);
+    }
+
+    public static Mappings loadProguard(Path file) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            return new Parser().parse(reader);
+        }
+    }
+
+    // ==================== Classes ====================
+    public int getClassCount() {
+        return clsOriginal.length;
+    }
+
+    public int findClass(String original) {
+        int mask = classTable.length - 1;
+        for (int slot = mix(original.hashCode()) & mask; classTable[slot] != 0; slot = (slot + 1) & mask) {
+            int idx = classTable[slot] - 1;
+            if (pool[clsOriginal[idx]].equals(original))
+                return idx;
+        }
+        return -1;
+    }
+
+    public String getClassOriginal(int cls) {
+        return pool[clsOriginal[cls]];
+    }
+
+    public String getClassMapped(int cls) {
+        return pool[clsMapped[cls]];
+    }
+
+    public String remapClass(String name) {
+        int idx = findClass(name);
+        if (idx != -1)
+            return getClassMapped(idx);
+        int inner = name.lastIndexOf('$');
+        if (inner != -1)
+            return remapClass(name.substring(0, inner)) + name.substring(inner);
+        return name;
+    }
+
+    public String remapDescriptor(String desc) {
+        return remapDescriptor(desc, this::remapClass);
+    }
+
+    private static String remapDescriptor(String desc, UnaryOperator<String> remapper) {
+        int start = desc.indexOf('L');
+        if (start == -1)
+            return desc;
+
+        StringBuilder ret = new StringBuilder(desc.length());
+        int last = 0;
+        while (start != -1) {
+            int end = desc.indexOf(';', start);
+            ret.append(desc, last, start + 1).append(remapper.apply(desc.substring(start + 1, end)));
+            last = end;
+            start = desc.indexOf('L', end);
+        }
+        return ret.append(desc, last, desc.length()).toString();
+    }
+
+    // ==================== Fields ====================
+    public int getFieldStart(int cls) {
+        return fieldStart[cls];
+    }
+
+    public int getFieldEnd(int cls) {
+        return fieldStart[cls + 1];
+    }
+
+    public int findField(int cls, String name) {
+        int mask = fieldTable.length - 1;
+        for (int slot = mix(hash(cls, name, null)) & mask; fieldTable[slot] != 0; slot = (slot + 1) & mask) {
+            int idx = fieldTable[slot] - 1;
+            if (fldOwner[idx] == cls && pool[fldOriginal[idx]].equals(name))
+                return idx;
+        }
+        return -1;
+    }
+
+    public String getFieldOriginal(int fld) {
+        return pool[fldOriginal[fld]];
+    }
+
+    public String getFieldMapped(int fld) {
+        return pool[fldMapped[fld]];
+    }
+
+    public String getFieldDescriptor(int fld) {
+        return fldDesc[fld] == -1 ? null : pool[fldDesc[fld]];
+    }
+
+    public String getFieldMappedDescriptor(int fld) {
+        return fldMappedDesc[fld] == -1 ? null : pool[fldMappedDesc[fld]];
+    }
+
+    public String remapField(String owner, String name) {
+        int cls = findClass(owner);
+        int fld = cls == -1 ? -1 : findField(cls, name);
+        return fld == -1 ? name : getFieldMapped(fld);
+    }
+
+    // ==================== Methods ====================
+    public int getMethodStart(int cls) {
+        return methodStart[cls];
+    }
+
+    public int getMethodEnd(int cls) {
+        return methodStart[cls + 1];
+    }
+
+    public int findMethod(int cls, String name, String desc) {
+        int mask = methodTable.length - 1;
+        for (int slot = mix(hash(cls, name, desc)) & mask; methodTable[slot] != 0; slot = (slot + 1) & mask) {
+            int idx = methodTable[slot] - 1;
+            if (mtdOwner[idx] == cls && pool[mtdOriginal[idx]].equals(name) && pool[mtdDesc[idx]].equals(desc))
+                return idx;
+        }
+        return -1;
+    }
+
+    public String getMethodOriginal(int mtd) {
+        return pool[mtdOriginal[mtd]];
+    }
+
+    public String getMethodMapped(int mtd) {
+        return pool[mtdMapped[mtd]];
+    }
+
+    public String getMethodDescriptor(int mtd) {
+        return pool[mtdDesc[mtd]];
+    }
+
+    public String getMethodMappedDescriptor(int mtd) {
+        return pool[mtdMappedDesc[mtd]];
+    }
+
+    // Source line range from the ProGuard file, 0 if there wasn't one
+    public int getMethodStartLine(int mtd) {
+        return mtdStartLine[mtd];
+    }
+
+    public int getMethodEndLine(int mtd) {
+        return mtdEndLine[mtd];
+    }
+
+    public String remapMethod(String owner, String name, String desc) {
+        int cls = findClass(owner);
+        int mtd = cls == -1 ? -1 : findMethod(cls, name, desc);
+        return mtd == -1 ? name : getMethodMapped(mtd);
+    }
+
+    public synchronized Mappings reverse() {
+        if (this.reverse == null) {
+            this.reverse = new Mappings(pool, clsMapped, clsOriginal, fieldStart, methodStart,
+                fldOwner, fldMapped, fldOriginal, fldMappedDesc, fldDesc,
+                mtdOwner, mtdMapped, mtdOriginal, mtdMappedDesc, mtdDesc, mtdStartLine, mtdEndLine);
+            this.reverse.reverse = this;
+        }
+        return this.reverse;
+    }
+
+    // ==================== Serialization ====================
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(pool.length);
+        for (String value : pool)
+            out.writeUTF(value);
+        for (int[] data : new int[][] { clsOriginal, clsMapped, fieldStart, methodStart,
+                fldOwner, fldOriginal, fldMapped, fldDesc, fldMappedDesc,
+                mtdOwner, mtdOriginal, mtdMapped, mtdDesc, mtdMappedDesc, mtdStartLine, mtdEndLine }) {
+            out.writeInt(data.length);
+            for (int value : data)
+                out.writeInt(value);
+        }
+    }
+
+    public static Mappings read(DataInputStream in) throws IOException {
+        String[] pool = new String[in.readInt()];
+        for (int x = 0; x < pool.length; x++)
+            pool[x] = in.readUTF();
+        int[][] data = new int[16][];
+        for (int x = 0; x < data.length; x++) {
+            data[x] = new int[in.readInt()];
+            for (int y = 0; y < data[x].length; y++)
+                data[x][y] = in.readInt();
+        }
+        return new Mappings(pool, data[0], data[1], data[2], data[3],
+            data[4], data[5], data[6], data[7], data[8],
+            data[9], data[10], data[11], data[12], data[13], data[14], data[15]);
+    }
+
+    // ==================== Lookup tables ====================
+    private static int tableSize(int count) {
+        int size = 16;
+        while (size < count * 2)
+            size <<= 1;
+        return size;
+    }
+
+    // Slots hold index + 1 so that 0 means empty.
+    private static void insert(int[] table, int hash, int idx) {
+        int mask = table.length - 1;
+        int slot = mix(hash) & mask;
+        while (table[slot] != 0)
+            slot = (slot + 1) & mask;
+        table[slot] = idx + 1;
+    }
+
+    private static int hash(int owner, String name, String desc) {
+        int ret = owner * 31 + name.hashCode();
+        return desc == null ? ret : ret * 31 + desc.hashCode();
+    }
+
+    private static int mix(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    // ==================== Parsing ====================
+    private static class Parser {
+        private final Map<String, Integer> pool = new HashMap<>();
+        private final List<String> strings = new ArrayList<>();
+        private final Map<String, String> classes = new HashMap<>();
+        private final IntList clsOriginal = new IntList(), clsMapped = new IntList(), fieldStart = new IntList(), methodStart = new IntList();
+        private final IntList fldOwner = new IntList(), fldOriginal = new IntList(), fldMapped = new IntList(), fldDesc = new IntList();
+        private final IntList mtdOwner = new IntList(), mtdOriginal = new IntList(), mtdMapped = new IntList(), mtdDesc = new IntList(), mtdStartLine = new IntList(), mtdEndLine = new IntList();
+        private final Map<String, Boolean> seen = new HashMap<>();
+
+        private Mappings parse(BufferedReader reader) throws IOException {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int start = 0;
+                while (start < line.length() && Character.isWhitespace(line.charAt(start)))
+                    start++;
+                if (start == line.length() || line.charAt(start) == '#')
+                    continue;
+
+                int arrow = line.indexOf(" -> ", start);
+                if (arrow == -1)
+                    throw new IOException("Invalid ProGuard line: " + line);
+
+                if (start == 0)
+                    addClass(line, arrow);
+                else if (clsOriginal.size == 0)
+                    throw new IOException("Member before any class: " + line);
+                else
+                    addMember(line, start, arrow);
+            }
+            fieldStart.add(fldOriginal.size);
+            methodStart.add(mtdOriginal.size);
+
+            // The mapped descriptors need every class, so can only be filled in at the end.
+            IntList fldMappedDesc = new IntList();
+            for (int x = 0; x < fldDesc.size; x++)
+                fldMappedDesc.add(fldDesc.data[x] == -1 ? -1 : intern(remapDescriptor(strings.get(fldDesc.data[x]), this::remapClass)));
+            IntList mtdMappedDesc = new IntList();
+            for (int x = 0; x < mtdDesc.size; x++)
+                mtdMappedDesc.add(intern(remapDescriptor(strings.get(mtdDesc.data[x]), this::remapClass)));
+
+            return new Mappings(strings.toArray(new String[strings.size()]), clsOriginal.toArray(), clsMapped.toArray(), fieldStart.toArray(), methodStart.toArray(),
+                fldOwner.toArray(), fldOriginal.toArray(), fldMapped.toArray(), fldDesc.toArray(), fldMappedDesc.toArray(),
+                mtdOwner.toArray(), mtdOriginal.toArray(), mtdMapped.toArray(), mtdDesc.toArray(), mtdMappedDesc.toArray(), mtdStartLine.toArray(), mtdEndLine.toArray());
+        }
+
+        private String remapClass(String name) {
+            String ret = classes.get(name);
+            if (ret != null)
+                return ret;
+            int inner = name.lastIndexOf('$');
+            return inner == -1 ? name : remapClass(name.substring(0, inner)) + name.substring(inner);
+        }
+
+        private void addClass(String line, int arrow) {
+            int end = line.endsWith(":") ? line.length() - 1 : line.length();
+            fieldStart.add(fldOriginal.size);
+            methodStart.add(mtdOriginal.size);
+            String original = line.substring(0, arrow).replace('.', '/');
+            String mapped = line.substring(arrow + 4, end).replace('.', '/');
+            classes.put(original, mapped);
+            clsOriginal.add(intern(original));
+            clsMapped.add(intern(mapped));
+            seen.clear();
+        }
+
+        private void addMember(String line, int start, int arrow) throws IOException {
+            int owner = clsOriginal.size - 1;
+            String mapped = line.substring(arrow + 4).trim();
+
+            int startLine = 0, endLine = 0;
+            if (Character.isDigit(line.charAt(start))) {
+                int colon = line.indexOf(':', start);
+                int colon2 = line.indexOf(':', colon + 1);
+                startLine = Integer.parseInt(line.substring(start, colon));
+                endLine = Integer.parseInt(line.substring(colon + 1, colon2));
+                start = colon2 + 1;
+            }
+
+            int space = line.indexOf(' ', start);
+            if (space == -1 || space > arrow)
+                throw new IOException("Invalid ProGuard member: " + line);
+            String type = line.substring(start, space);
+
+            int paren = line.indexOf('(', space);
+            if (paren == -1 || paren > arrow) {
+                fldOwner.add(owner);
+                fldOriginal.add(intern(line.substring(space + 1, arrow)));
+                fldMapped.add(intern(mapped));
+                fldDesc.add(intern(toDescriptor(type)));
+                return;
+            }
+
+            String name = line.substring(space + 1, paren);
+            if (name.indexOf('.') != -1) // Inlined from another class, not a member of this one
+                return;
+
+            int close = line.indexOf(')', paren);
+            StringBuilder desc = new StringBuilder().append('(');
+            int argStart = paren + 1;
+            while (argStart < close) {
+                int comma = line.indexOf(',', argStart);
+                if (comma == -1 || comma > close)
+                    comma = close;
+                desc.append(toDescriptor(line.substring(argStart, comma)));
+                argStart = comma + 1;
+            }
+            desc.append(')').append(toDescriptor(type));
+
+            // The same method can be listed once per inlined line range, only the first one counts.
+            String descriptor = desc.toString();
+            if (seen.put(name + descriptor, Boolean.TRUE) != null)
+                return;
+
+            mtdOwner.add(owner);
+            mtdOriginal.add(intern(name));
+            mtdMapped.add(intern(mapped));
+            mtdDesc.add(intern(descriptor));
+            mtdStartLine.add(startLine);
+            mtdEndLine.add(endLine);
+        }
+
+        private int intern(String value) {
+            Integer ret = pool.get(value);
+            if (ret == null) {
+                ret = strings.size();
+                pool.put(value, ret);
+                strings.add(value);
+            }
+            return ret;
+        }
+
+        private static String toDescriptor(String type) {
+            int dims = 0;
+            int end = type.length();
+            while (end > 2 && type.charAt(end - 1) == ']' && type.charAt(end - 2) == '[') {
+                dims++;
+                end -= 2;
+            }
+            String base = type.substring(0, end);
+            StringBuilder ret = new StringBuilder(base.length() + dims + 2);
+            for (int x = 0; x < dims; x++)
+                ret.append('[');
+            switch (base) {
+                case "int":     return ret.append('I').toString();
+                case "long":    return ret.append('J').toString();
+                case "boolean": return ret.append('Z').toString();
+                case "byte":    return ret.append('B').toString();
+                case "char":    return ret.append('C').toString();
+                case "short":   return ret.append('S').toString();
+                case "float":   return ret.append('F').toString();
+                case "double":  return ret.append('D').toString();
+                case "void":    return ret.append('V').toString();
+                default:        return ret.append('L').append(base.replace('.', '/')).append(';').toString();
+            }
+        }
+    }
+
+    private static class IntList {
+        private int[] data = new int[1024];
+        private int size = 0;
+
+        private void add(int value) {
+            if (size == data.length)
+                data = Arrays.copyOf(data, size * 2);
+            data[size++] = value;
+        }
+
+        private int[] toArray() {
+            return Arrays.copyOf(data, size);
+        }
+    }
+}
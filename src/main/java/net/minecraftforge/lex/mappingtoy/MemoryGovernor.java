@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) LexManos
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+package net.minecraftforge.lex.mappingtoy;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/*
+ * Keeps the estimated heap use of everything running at once under a fixed budget.
+ *
+ * Work declares how much it expects to need up front, and waits until that fits in what's left.
+ * Anything bigger than the whole budget is still let through, but only once nothing else is running.
+ * The estimates are rough multiples of input file sizes, they only need to be in the right ballpark
+ * to stop several large versions being worked on at the same time.
+ */
+public class MemoryGovernor {
+    private final long budget;
+    private long used = 0;
+
+    public MemoryGovernor(long budget) {
+        this.budget = budget;
+    }
+
+    public long getBudget() {
+        return this.budget;
+    }
+
+    public Permit acquire(String name, long bytes) throws IOException {
+        long need = Math.max(0, Math.min(bytes, budget));
+        synchronized (this) {
+            if (used + need > budget)
+                MappingToy.log.info("  Waiting for memory: " + name + " needs " + (need >> 20) + "MB, " + ((budget - used) >> 20) + "MB free");
+
+            try {
+                while (used + need > budget)
+                    wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for memory", e);
+            }
+            used += need;
+        }
+        return new Permit(need);
+    }
+
+    private synchronized void release(long bytes) {
+        used -= bytes;
+        notifyAll();
+    }
+
+    // Size of the file, or 0 if it doesn't exist so missing inputs don't count against the budget.
+    public static long size(Path file) {
+        try {
+            return Files.isRegularFile(file) ? Files.size(file) : 0;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    public class Permit implements Closeable {
+        private long bytes;
+
+        private Permit(long bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public void close() {
+            if (bytes != 0) {
+                release(bytes);
+                bytes = 0;
+            }
+        }
+    }
+}
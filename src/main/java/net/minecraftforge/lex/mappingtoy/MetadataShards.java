@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) LexManos
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+package net.minecraftforge.lex.mappingtoy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/*
+ * Metadata split over many smaller files instead of one huge json, so single classes can be read
+ * without parsing everything.
+ *
+ * Shards are either one per package, or runs of a fixed number of classes in name order. Each shard is
+ * a json object of class name to info, same as the single file. index.shards maps every class to its shard
+ * and the byte offset and length of its info inside it, so one class is a seek and a small parse. It's
+ * json too, but named so no package shard can ever collide with it.
+ * The index is written last, so it only exists once every shard is complete.
+ */
+public class MetadataShards {
+    public static final int SINGLE = 0;
+    public static final int BY_PACKAGE = -1;
+    public static final String INDEX = "index.shards";
+
+    String format = "mappingtoy-meta-shards-1";
+    Map<String, Entry> classes = new TreeMap<>();
+    private transient Path dir;
+
+    static class Entry {
+        String shard;
+        long offset;
+        int length;
+
+        private Entry(String shard, long offset, int length) {
+            this.shard = shard;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    // 'package', 'single' or a number of classes per shard
+    public static int parse(String value) {
+        if ("package".equalsIgnoreCase(value))
+            return BY_PACKAGE;
+        if ("single".equalsIgnoreCase(value))
+            return SINGLE;
+        int ret = Integer.parseInt(value);
+        if (ret <= 0)
+            throw new IllegalArgumentException("Invalid shard size: " + value);
+        return ret;
+    }
+
+    public static String describe(int shards) {
+        return shards == SINGLE ? "single" : shards == BY_PACKAGE ? "package" : Integer.toString(shards);
+    }
+
+    public static <T> void write(Path dir, Map<String, T> data, int shards, ExecutorService executor) throws IOException {
+        Files.createDirectories(dir);
+        // Shards left from an older layout would never be referenced by the new index, anything else isn't ours to touch
+        Files.deleteIfExists(dir.resolve(INDEX));
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>)files::iterator) {
+                if (file.getFileName().toString().endsWith(".json") && Files.isRegularFile(file))
+                    Files.delete(file);
+            }
+        }
+
+        Map<String, List<String>> groups = new LinkedHashMap<>();
+        int count = 0;
+        for (String cls : new TreeMap<>(data).keySet()) {
+            String shard;
+            if (shards == BY_PACKAGE) {
+                int idx = cls.lastIndexOf('/');
+                shard = idx == -1 ? "_default" : cls.substring(0, idx).replace('/', '.');
+            } else {
+                shard = String.format(Locale.ROOT, "shard_%04d", count++ / shards);
+            }
+            groups.computeIfAbsent(shard, k -> new ArrayList<>()).add(cls);
+        }
+
+        List<Future<Map<String, Entry>>> pending = new ArrayList<>();
+        try {
+            for (Map.Entry<String, List<String>> group : groups.entrySet())
+                pending.add(executor.submit(() -> writeShard(dir, group.getKey(), group.getValue(), data)));
+
+            MetadataShards index = new MetadataShards();
+            for (Future<Map<String, Entry>> future : pending)
+                index.classes.putAll(Utils.getFuture(future));
+            Utils.writeJson(dir.resolve(INDEX), index);
+        } finally {
+            pending.forEach(f -> f.cancel(true));
+        }
+    }
+
+    private static <T> Map<String, Entry> writeShard(Path dir, String shard, List<String> classes, Map<String, T> data) throws IOException {
+        Map<String, Entry> ret = new LinkedHashMap<>();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write('{');
+        for (int x = 0; x < classes.size(); x++) {
+            String cls = classes.get(x);
+            out.write((x == 0 ? "\n  " : ",\n  ").getBytes(StandardCharsets.UTF_8));
+            out.write(Utils.GSON.toJson(cls).getBytes(StandardCharsets.UTF_8));
+            out.write(": ".getBytes(StandardCharsets.UTF_8));
+            byte[] value = Utils.GSON.toJson(data.get(cls)).getBytes(StandardCharsets.UTF_8);
+            ret.put(cls, new Entry(shard + ".json", out.size(), value.length));
+            out.write(value);
+        }
+        out.write("\n}".getBytes(StandardCharsets.UTF_8));
+        Utils.writeAtomic(dir.resolve(shard + ".json"), tmp -> Files.write(tmp, out.toByteArray()));
+        return ret;
+    }
+
+    /*
+     * Loads the index once, so each class read after is just a seek into its shard.
+     */
+    public static MetadataShards open(Path dir) throws IOException {
+        MetadataShards ret = Utils.loadJson(dir.resolve(INDEX), MetadataShards.class);
+        ret.dir = dir;
+        return ret;
+    }
+
+    // Raw json of a single class's info, or null if it isn't in the index.
+    public String read(String cls) throws IOException {
+        Entry entry = classes.get(cls);
+        if (entry == null)
+            return null;
+
+        try (RandomAccessFile file = new RandomAccessFile(dir.resolve(entry.shard).toFile(), "r")) {
+            byte[] data = new byte[entry.length];
+            file.seek(entry.offset);
+            file.readFully(data);
+            return new String(data, StandardCharsets.UTF_8);
+        }
+    }
+}
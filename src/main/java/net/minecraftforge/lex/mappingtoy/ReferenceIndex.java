@@ -0,0 +1,270 @@
+/*
+ * Copyright (c) LexManos
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+package net.minecraftforge.lex.mappingtoy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Opcodes;
+
+/*
+ * Which methods call which methods, and read or write which fields, gathered while the metadata is
+ * built so answering 'who uses this' doesn't need another pass over the jar.
+ *
+ * Written next to the metadata as <type>_refs.bin, gzipped:
+ *   int magic, int version
+ *   varint count, then every owner/name/descriptor string, sorted
+ *   varint count, then every member as three varint string indexes, sorted
+ *   varint count, then every reference sorted by user: the varint gap from the previous user,
+ *     a kind byte, and the varint member index being used
+ * Each distinct reference is only stored once, no matter how many times the method does it.
+ */
+public class ReferenceIndex {
+    public static final String SUFFIX = "_refs.bin";
+    public static final byte CALL = 0;
+    public static final byte READ = 1;
+    public static final byte WRITE = 2;
+    private static final String[] KINDS = { "call", "read", "write" };
+    private static final int MAGIC = 0x4D545246; // MTRF
+    private static final int VERSION = 1;
+
+    private final Map<Member, Integer> ids = new HashMap<>();
+    private final List<Member> members = new ArrayList<>();
+    // user << 32 | kind << 30 | target
+    private long[] refs = new long[1024];
+    private int count = 0;
+
+    private static class Member {
+        private final String owner;
+        private final String name;
+        private final String desc;
+
+        private Member(String owner, String name, String desc) {
+            this.owner = owner;
+            this.name = name;
+            this.desc = desc;
+        }
+
+        private int compareTo(Member o) {
+            int ret = owner.compareTo(o.owner);
+            if (ret == 0)
+                ret = name.compareTo(o.name);
+            return ret != 0 ? ret : desc.compareTo(o.desc);
+        }
+
+        // Same layout as the symbol index: a/b/C.method(desc) and a/b/C.field:desc
+        @Override
+        public String toString() {
+            return owner + '.' + name + (desc.startsWith("(") ? desc : ':' + desc);
+        }
+
+        @Override
+        public int hashCode() {
+            return (owner.hashCode() * 31 + name.hashCode()) * 31 + desc.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Member))
+                return false;
+            Member m = (Member)o;
+            return owner.equals(m.owner) && name.equals(m.name) && desc.equals(m.desc);
+        }
+    }
+
+    private int id(String owner, String name, String desc) {
+        Member key = new Member(owner, name, desc);
+        Integer ret = ids.get(key);
+        if (ret == null) {
+            ret = members.size();
+            members.add(key);
+            ids.put(key, ret);
+        }
+        return ret;
+    }
+
+    public synchronized void addCall(String owner, String name, String desc, String tOwner, String tName, String tDesc) {
+        add(owner, name, desc, CALL, tOwner, tName, tDesc);
+    }
+
+    public synchronized void addField(String owner, String name, String desc, int opcode, String tOwner, String tName, String tDesc) {
+        add(owner, name, desc, opcode == Opcodes.GETFIELD || opcode == Opcodes.GETSTATIC ? READ : WRITE, tOwner, tName, tDesc);
+    }
+
+    // Lambdas and record bootstraps reference their targets through handles in the bootstrap arguments
+    public synchronized void addHandles(String owner, String name, String desc, Object[] bsmArgs) {
+        if (bsmArgs == null)
+            return;
+        for (Object arg : bsmArgs) {
+            if (!(arg instanceof Handle))
+                continue;
+            Handle handle = (Handle)arg;
+            byte kind = handle.getTag() <= Opcodes.H_GETSTATIC ? READ : handle.getTag() <= Opcodes.H_PUTSTATIC ? WRITE : CALL;
+            add(owner, name, desc, kind, handle.getOwner(), handle.getName(), handle.getDesc());
+        }
+    }
+
+    private void add(String owner, String name, String desc, byte kind, String tOwner, String tName, String tDesc) {
+        long ref = ((long)id(owner, name, desc) << 32) | ((long)kind << 30) | id(tOwner, tName, tDesc);
+        if (count == refs.length)
+            refs = Arrays.copyOf(refs, count * 2);
+        refs[count++] = ref;
+    }
+
+    public synchronized void write(Path target) throws IOException {
+        // Renumber everything in sorted order so the file doesn't depend on the order classes were loaded
+        Integer[] order = new Integer[members.size()];
+        for (int x = 0; x < order.length; x++)
+            order[x] = x;
+        Arrays.sort(order, Comparator.comparing(members::get, Member::compareTo));
+        int[] remap = new int[order.length];
+        for (int x = 0; x < order.length; x++)
+            remap[order[x]] = x;
+
+        List<String> strings = new ArrayList<>();
+        for (Member m : members) {
+            strings.add(m.owner);
+            strings.add(m.name);
+            strings.add(m.desc);
+        }
+        String[] table = strings.stream().distinct().sorted().toArray(String[]::new);
+        Map<String, Integer> stringIds = new HashMap<>();
+        for (int x = 0; x < table.length; x++)
+            stringIds.put(table[x], x);
+
+        long[] sorted = new long[count];
+        for (int x = 0; x < count; x++) {
+            long ref = refs[x];
+            sorted[x] = ((long)remap[(int)(ref >>> 32)] << 32) | (ref & (3L << 30)) | remap[(int)(ref & 0x3FFFFFFF)];
+        }
+        Arrays.sort(sorted);
+
+        Utils.writeAtomic(target, tmp -> writeTo(tmp, table, stringIds, order, sorted));
+    }
+
+    private void writeTo(Path tmp, String[] table, Map<String, Integer> stringIds, Integer[] order, long[] sorted) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(tmp))))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            writeVarInt(out, table.length);
+            for (String str : table)
+                out.writeUTF(str);
+
+            writeVarInt(out, order.length);
+            for (Integer idx : order) {
+                Member m = members.get(idx);
+                writeVarInt(out, stringIds.get(m.owner));
+                writeVarInt(out, stringIds.get(m.name));
+                writeVarInt(out, stringIds.get(m.desc));
+            }
+
+            int unique = 0;
+            for (int x = 0; x < sorted.length; x++) {
+                if (x == 0 || sorted[x] != sorted[x - 1])
+                    unique++;
+            }
+            writeVarInt(out, unique);
+            int last = 0;
+            for (int x = 0; x < sorted.length; x++) {
+                if (x != 0 && sorted[x] == sorted[x - 1])
+                    continue;
+                int user = (int)(sorted[x] >>> 32);
+                writeVarInt(out, user - last);
+                out.writeByte((int)((sorted[x] >>> 30) & 3));
+                writeVarInt(out, (int)(sorted[x] & 0x3FFFFFFF));
+                last = user;
+            }
+        }
+    }
+
+    /*
+     * Loads a written index, only useful for lookups after.
+     */
+    public static ReferenceIndex read(Path target) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(target))))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                throw new IOException("Invalid reference index: " + target);
+
+            String[] table = new String[readVarInt(in)];
+            for (int x = 0; x < table.length; x++)
+                table[x] = in.readUTF();
+
+            ReferenceIndex ret = new ReferenceIndex();
+            int size = readVarInt(in);
+            for (int x = 0; x < size; x++)
+                ret.id(table[readVarInt(in)], table[readVarInt(in)], table[readVarInt(in)]);
+
+            ret.count = readVarInt(in);
+            ret.refs = new long[ret.count];
+            int user = 0;
+            for (int x = 0; x < ret.count; x++) {
+                user += readVarInt(in);
+                long kind = in.readByte();
+                ret.refs[x] = ((long)user << 32) | (kind << 30) | readVarInt(in);
+            }
+            return ret;
+        }
+    }
+
+    /*
+     * Everything that uses the member, as 'kind user' lines. A null descriptor matches any, which is
+     * mostly useful for fields.
+     */
+    public synchronized List<String> getUsers(String owner, String name, String desc) {
+        List<String> ret = new ArrayList<>();
+        for (int x = 0; x < count; x++) {
+            Member target = members.get((int)(refs[x] & 0x3FFFFFFF));
+            if (target.owner.equals(owner) && target.name.equals(name) && (desc == null || target.desc.equals(desc)))
+                ret.add(KINDS[(int)((refs[x] >>> 30) & 3)] + ' ' + members.get((int)(refs[x] >>> 32)));
+        }
+        return ret;
+    }
+
+    // Everything the member uses, as 'kind target' lines.
+    public synchronized List<String> getUses(String owner, String name, String desc) {
+        List<String> ret = new ArrayList<>();
+        Integer user = ids.get(new Member(owner, name, desc));
+        if (user == null)
+            return ret;
+        for (int x = 0; x < count; x++) {
+            if ((int)(refs[x] >>> 32) == user)
+                ret.add(KINDS[(int)((refs[x] >>> 30) & 3)] + ' ' + members.get((int)(refs[x] & 0x3FFFFFFF)));
+        }
+        return ret;
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int ret = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.readUnsignedByte();
+            ret |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return ret;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) LexManos
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+package net.minecraftforge.lex.mappingtoy;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.objectweb.asm.commons.Remapper;
+
+/*
+ * Remapped classes shared between versions, so a class that didn't change, and whose mappings didn't
+ * change, doesn't have to go through the ClassRemapper again.
+ *
+ * Entries are keyed by the SHA1 of the obfuscated class. While a class is remapped we record every
+ * class, field and method name the remapper looked up, and store those lookups along with a digest
+ * of their answers. On a hit the lookups are repeated against the current mappings, and the cached
+ * bytes are only used if every answer is the same.
+ *
+ * Each class hash holds one entry, the most recently written, so a class whose mappings flip back
+ * and forth between versions will just miss.
+ *
+ * Entry layout: magic, format version, lookup count, the lookups, answer digest, mapped name, class bytes.
+ */
+public class RemapCache {
+    private static final int MAGIC = 0x4D545243; // MTRC
+    private static final int VERSION = 1;
+    private static final byte CLASS = 'C';
+    private static final byte FIELD = 'F';
+    private static final byte METHOD = 'M';
+
+    private final Path root;
+
+    public RemapCache(Path root) {
+        this.root = root;
+    }
+
+    private Path getPath(String hash) {
+        return root.resolve(hash.substring(0, 2)).resolve(hash.substring(2));
+    }
+
+    /*
+     * The mapped name and bytes of the class, or null if there is no entry or the mappings
+     * it depends on have changed.
+     */
+    public Map.Entry<String, byte[]> get(String hash, Mappings map) {
+        Path file = getPath(hash);
+        if (!Files.isRegularFile(file))
+            return null;
+
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                return null;
+
+            MessageDigest digest = HashFunction.SHA1.get();
+            int count = in.readInt();
+            for (int x = 0; x < count; x++) {
+                byte kind = in.readByte();
+                String owner = in.readUTF();
+                String name = kind == CLASS ? null : in.readUTF();
+                String desc = kind == METHOD ? in.readUTF() : null;
+                update(digest, lookup(map, kind, owner, name, desc));
+            }
+
+            byte[] expected = new byte[in.readUnsignedByte()];
+            in.readFully(expected);
+            if (!MessageDigest.isEqual(expected, digest.digest()))
+                return null;
+
+            String mapped = in.readUTF();
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+            return new AbstractMap.SimpleEntry<>(mapped, data);
+        } catch (IOException e) {
+            MappingToy.log.info("    Invalid remap cache " + hash + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    public void put(String hash, Recorder recorder, String mapped, byte[] data) throws IOException {
+        Path target = getPath(hash);
+        Files.createDirectories(target.getParent());
+        Path tmp = Files.createTempFile(target.getParent(), hash, ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(tmp))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+
+                MessageDigest digest = HashFunction.SHA1.get();
+                out.writeInt(recorder.lookups.size());
+                for (String[] lookup : recorder.lookups) {
+                    byte kind = (byte)lookup[0].charAt(0);
+                    out.writeByte(kind);
+                    out.writeUTF(lookup[1]);
+                    if (kind != CLASS)
+                        out.writeUTF(lookup[2]);
+                    if (kind == METHOD)
+                        out.writeUTF(lookup[3]);
+                    update(digest, lookup(recorder.map, kind, lookup[1], lookup[2], lookup[3]));
+                }
+
+                byte[] answers = digest.digest();
+                out.writeByte(answers.length);
+                out.write(answers);
+                out.writeUTF(mapped);
+                out.writeInt(data.length);
+                out.write(data);
+            }
+            try {
+                Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static String lookup(Mappings map, byte kind, String owner, String name, String desc) {
+        switch (kind) {
+            case CLASS:  return map.remapClass(owner);
+            case FIELD:  return map.remapField(owner, name);
+            case METHOD: return map.remapMethod(owner, name, desc);
+            default:     throw new IllegalArgumentException("Unknown lookup: " + (char)kind);
+        }
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        digest.update(value.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte)0);
+    }
+
+    /*
+     * Remapper for a single class that remembers everything it was asked, in the order it was asked.
+     */
+    public static class Recorder extends Remapper {
+        private final Mappings map;
+        private final Set<String> seen = new HashSet<>();
+        private final List<String[]> lookups = new ArrayList<>();
+
+        public Recorder(Mappings map) {
+            this.map = map;
+        }
+
+        private void record(String... lookup) {
+            if (seen.add(String.join("\0", lookup)))
+                lookups.add(lookup);
+        }
+
+        @Override
+        public String mapMethodName(final String owner, final String name, final String descriptor) {
+            record("M", owner, name, descriptor);
+            return map.remapMethod(owner, name, descriptor);
+        }
+
+        @Override
+        public String mapFieldName(final String owner, final String name, final String descriptor) {
+            record("F", owner, name, null);
+            return map.remapField(owner, name);
+        }
+
+        @Override
+        public String map(final String internalName) {
+            record("C", internalName, null, null);
+            return map.remapClass(internalName);
+        }
+    }
+}
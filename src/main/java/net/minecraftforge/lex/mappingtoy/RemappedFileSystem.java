@@ -0,0 +1,330 @@
+/*
+ * Copyright (c) LexManos
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+package net.minecraftforge.lex.mappingtoy;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.ClosedFileSystemException;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystem;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.attribute.FileStoreAttributeView;
+import java.nio.file.attribute.UserPrincipalLookupService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+/*
+ * Read only view of a jar as it would look renamed, without the renamed jar ever being written.
+ *
+ * Only the entry names are worked out up front. An entry's data is renamed the first time it's read,
+ * and kept in a least recently used cache bounded by total size, so hot classes aren't renamed again.
+ */
+class RemappedFileSystem extends FileSystem {
+    private final RemappedFileSystemProvider provider;
+    private final Path jar;
+    private final ClassStore source;
+    private final Mappings map;
+    private final long cacheLimit;
+
+    private final Map<String, String> entries = new HashMap<>();           // Renamed entry name -> source entry name
+    private final Map<String, Set<String>> directories = new HashMap<>();  // Directory -> its direct children, "" is the root
+    private final LinkedHashMap<String, byte[]> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long cacheSize = 0;
+    private volatile boolean open = true;
+    private final FileStore store = new RemappedFileStore();
+
+    RemappedFileSystem(RemappedFileSystemProvider provider, Path jar, CachedMappings mappings, long cacheLimit) throws IOException {
+        this.provider = provider;
+        this.jar = jar;
+        this.map = mappings.getReverse();
+        this.cacheLimit = cacheLimit;
+        this.source = ClassStore.open(jar);
+
+        directories.put("", new TreeSet<>());
+        for (String name : source.getNames()) {
+            if (name.endsWith("/")) {
+                addDirectory(name.substring(0, name.length() - 1));
+                continue;
+            }
+            String renamed = name.endsWith(".class") ? map.remapClass(name.substring(0, name.length() - 6)) + ".class" : name;
+            entries.put(renamed, name);
+            int idx = renamed.lastIndexOf('/');
+            addDirectory(idx == -1 ? "" : renamed.substring(0, idx));
+            directories.get(idx == -1 ? "" : renamed.substring(0, idx)).add(renamed);
+        }
+    }
+
+    private void addDirectory(String dir) {
+        if (directories.containsKey(dir))
+            return;
+        directories.put(dir, new TreeSet<>());
+        int idx = dir.lastIndexOf('/');
+        String parent = idx == -1 ? "" : dir.substring(0, idx);
+        addDirectory(parent);
+        directories.get(parent).add(dir);
+    }
+
+    Path getJar() {
+        return this.jar;
+    }
+
+    URI toUri(String path) {
+        return URI.create(provider.getScheme() + ':' + jar.toUri() + '!' + path);
+    }
+
+    // Everything that touches the jar goes through here, once closed the ClassStore is gone.
+    private void checkOpen() {
+        if (!open)
+            throw new ClosedFileSystemException();
+    }
+
+    boolean exists(String entry) {
+        checkOpen();
+        return entries.containsKey(entry) || directories.containsKey(entry);
+    }
+
+    boolean isDirectory(String entry) {
+        checkOpen();
+        return directories.containsKey(entry);
+    }
+
+    // Direct children of a directory, as entry names
+    Set<String> list(String dir) {
+        checkOpen();
+        Set<String> ret = directories.get(dir);
+        return ret == null ? null : Collections.unmodifiableSet(ret);
+    }
+
+    /*
+     * Renamed data of the entry, or null if there is no such file.
+     */
+    byte[] read(String entry) throws IOException {
+        checkOpen();
+        String name = entries.get(entry);
+        if (name == null)
+            return null;
+
+        synchronized (cache) {
+            byte[] ret = cache.get(entry);
+            if (ret != null)
+                return ret;
+        }
+
+        byte[] ret = JarRenamer.renameEntry(source, name, map).getValue();
+
+        synchronized (cache) {
+            if (!cache.containsKey(entry) && ret.length <= cacheLimit) {
+                cache.put(entry, ret);
+                cacheSize += ret.length;
+                Iterator<byte[]> itr = cache.values().iterator();
+                while (cacheSize > cacheLimit && itr.hasNext()) {
+                    cacheSize -= itr.next().length;
+                    itr.remove();
+                }
+            }
+        }
+        return ret;
+    }
+
+    // The renamed size isn't known until the entry has been renamed, so this reads it if it isn't cached.
+    long size(String entry) throws IOException {
+        byte[] data = read(entry);
+        return data == null ? 0 : data.length;
+    }
+
+    @Override
+    public RemappedFileSystemProvider provider() {
+        return provider;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!open)
+            return;
+        open = false;
+        provider.remove(this);
+        synchronized (cache) {
+            cache.clear();
+            cacheSize = 0;
+        }
+        source.close();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return true;
+    }
+
+    @Override
+    public String getSeparator() {
+        return "/";
+    }
+
+    @Override
+    public Iterable<Path> getRootDirectories() {
+        return Collections.singletonList(new RemappedPath(this, "/"));
+    }
+
+    FileStore getFileStore() {
+        checkOpen();
+        return store;
+    }
+
+    @Override
+    public Iterable<FileStore> getFileStores() {
+        return Collections.singletonList(getFileStore());
+    }
+
+    @Override
+    public Set<String> supportedFileAttributeViews() {
+        return Collections.singleton("basic");
+    }
+
+    @Override
+    public Path getPath(String first, String... more) {
+        if (more.length == 0)
+            return new RemappedPath(this, first);
+        List<String> parts = new ArrayList<>();
+        parts.add(first);
+        Collections.addAll(parts, more);
+        return new RemappedPath(this, String.join("/", parts));
+    }
+
+    @Override
+    public PathMatcher getPathMatcher(String syntaxAndPattern) {
+        int idx = syntaxAndPattern.indexOf(':');
+        if (idx == -1)
+            throw new IllegalArgumentException("Missing syntax: " + syntaxAndPattern);
+        String syntax = syntaxAndPattern.substring(0, idx);
+        String pattern = syntaxAndPattern.substring(idx + 1);
+
+        Pattern regex;
+        if ("regex".equalsIgnoreCase(syntax))
+            regex = Pattern.compile(pattern);
+        else if ("glob".equalsIgnoreCase(syntax))
+            regex = Pattern.compile(globToRegex(pattern));
+        else
+            throw new UnsupportedOperationException("Unknown syntax: " + syntax);
+        return path -> regex.matcher(path.toString()).matches();
+    }
+
+    // Handles *, **, ?, {a,b} and [...] the same way the default file system does.
+    private static String globToRegex(String glob) {
+        StringBuilder ret = new StringBuilder();
+        boolean group = false;
+        for (int x = 0; x < glob.length(); x++) {
+            char c = glob.charAt(x);
+            switch (c) {
+                case '*':
+                    if (x + 1 < glob.length() && glob.charAt(x + 1) == '*') {
+                        ret.append(".*");
+                        x++;
+                    } else {
+                        ret.append("[^/]*");
+                    }
+                    break;
+                case '?': ret.append("[^/]"); break;
+                case '{': ret.append("(?:"); group = true; break;
+                case '}': ret.append(')'); group = false; break;
+                case ',': ret.append(group ? "|" : ","); break;
+                case '[':
+                    int end = glob.indexOf(']', x);
+                    if (end == -1)
+                        throw new IllegalArgumentException("Unclosed [ in " + glob);
+                    String set = glob.substring(x + 1, end);
+                    ret.append('[').append(set.startsWith("!") ? "^" + set.substring(1) : set).append(']');
+                    x = end;
+                    break;
+                case '\\':
+                    if (x + 1 < glob.length())
+                        ret.append(Pattern.quote(String.valueOf(glob.charAt(++x))));
+                    break;
+                default:
+                    ret.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return ret.toString();
+    }
+
+    @Override
+    public UserPrincipalLookupService getUserPrincipalLookupService() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public WatchService newWatchService() {
+        throw new UnsupportedOperationException();
+    }
+
+    // Nothing can be written, and there's no real storage behind it to report space for.
+    private class RemappedFileStore extends FileStore {
+        @Override
+        public String name() {
+            return jar.toString();
+        }
+
+        @Override
+        public String type() {
+            return provider.getScheme();
+        }
+
+        @Override
+        public boolean isReadOnly() {
+            return true;
+        }
+
+        @Override
+        public long getTotalSpace() {
+            return 0;
+        }
+
+        @Override
+        public long getUsableSpace() {
+            return 0;
+        }
+
+        @Override
+        public long getUnallocatedSpace() {
+            return 0;
+        }
+
+        @Override
+        public boolean supportsFileAttributeView(Class<? extends FileAttributeView> type) {
+            return type == BasicFileAttributeView.class;
+        }
+
+        @Override
+        public boolean supportsFileAttributeView(String name) {
+            return "basic".equals(name);
+        }
+
+        @Override
+        public <V extends FileStoreAttributeView> V getFileStoreAttributeView(Class<V> type) {
+            return null;
+        }
+
+        @Override
+        public Object getAttribute(String attribute) throws IOException {
+            throw new UnsupportedOperationException("Unsupported attribute: " + attribute);
+        }
+    }
+}
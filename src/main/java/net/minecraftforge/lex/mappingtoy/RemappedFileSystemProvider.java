@@ -0,0 +1,405 @@
+/*
+ * Copyright (c) LexManos
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+package net.minecraftforge.lex.mappingtoy;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.AccessMode;
+import java.nio.file.CopyOption;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.FileSystems;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.ReadOnlyFileSystemException;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Opens a jar plus a ProGuard mapping file as a read only file system containing the renamed jar.
+ * Entries are renamed one at a time as they're read, see RemappedFileSystem.
+ *
+ * Registered as a service, so it can be used through FileSystems with URIs like
+ * mappingtoy:file:///output/1.20/joined_a.jar!/net/minecraft/client/Minecraft.class
+ *
+ * Environment when creating one:
+ *   mappings  - Path or String, the ProGuard mapping file the jar is renamed with. Required.
+ *   cacheSize - Number or String, most bytes of renamed entries to keep cached. Default 32MB.
+ */
+public class RemappedFileSystemProvider extends FileSystemProvider {
+    public static final String SCHEME = "mappingtoy";
+    private static final long DEFAULT_CACHE = 32 * 1024 * 1024;
+    private static final FileTime TIME = FileTime.fromMillis(Utils.STABLE_TIME);
+
+    private final Map<Path, RemappedFileSystem> filesystems = new HashMap<>();
+
+    public static FileSystem open(Path jar, Path mappings) throws IOException {
+        Map<String, Object> env = new HashMap<>();
+        env.put("mappings", mappings);
+        return FileSystems.newFileSystem(URI.create(SCHEME + ':' + jar.toUri()), env);
+    }
+
+    @Override
+    public String getScheme() {
+        return SCHEME;
+    }
+
+    private static Path getJar(URI uri) {
+        if (!SCHEME.equalsIgnoreCase(uri.getScheme()))
+            throw new IllegalArgumentException("Invalid scheme: " + uri);
+        String ssp = uri.getRawSchemeSpecificPart();
+        int idx = ssp.indexOf("!/");
+        return Paths.get(URI.create(idx == -1 ? ssp : ssp.substring(0, idx))).toAbsolutePath().normalize();
+    }
+
+    private static String getEntry(URI uri) {
+        String ssp = uri.getRawSchemeSpecificPart();
+        int idx = ssp.indexOf("!/");
+        return idx == -1 ? "/" : ssp.substring(idx + 1);
+    }
+
+    @Override
+    public FileSystem newFileSystem(URI uri, Map<String, ?> env) throws IOException {
+        return newFileSystem(getJar(uri), env);
+    }
+
+    @Override
+    public FileSystem newFileSystem(Path path, Map<String, ?> env) throws IOException {
+        // Without mappings this isn't for us, let another provider open the jar.
+        Object mappings = env.get("mappings");
+        if (mappings == null)
+            throw new UnsupportedOperationException("Missing mappings");
+
+        Object cache = env.get("cacheSize");
+        long cacheSize = cache == null ? DEFAULT_CACHE : cache instanceof Number ? ((Number)cache).longValue() : Long.parseLong(cache.toString());
+        Path mappingsPath = mappings instanceof Path ? (Path)mappings : Paths.get(mappings.toString());
+
+        Path jar = path.toAbsolutePath().normalize();
+        synchronized (filesystems) {
+            if (filesystems.containsKey(jar))
+                throw new FileSystemAlreadyExistsException(jar.toString());
+            RemappedFileSystem ret = new RemappedFileSystem(this, jar, new CachedMappings(mappingsPath), cacheSize);
+            filesystems.put(jar, ret);
+            return ret;
+        }
+    }
+
+    void remove(RemappedFileSystem fs) {
+        synchronized (filesystems) {
+            filesystems.remove(fs.getJar(), fs);
+        }
+    }
+
+    @Override
+    public FileSystem getFileSystem(URI uri) {
+        Path jar = getJar(uri);
+        synchronized (filesystems) {
+            RemappedFileSystem ret = filesystems.get(jar);
+            if (ret == null)
+                throw new FileSystemNotFoundException(jar.toString());
+            return ret;
+        }
+    }
+
+    @Override
+    public Path getPath(URI uri) {
+        return getFileSystem(uri).getPath(getEntry(uri));
+    }
+
+    private static RemappedPath check(Path path) {
+        if (!(path instanceof RemappedPath))
+            throw new ProviderMismatchException();
+        return (RemappedPath)path;
+    }
+
+    @Override
+    public SeekableByteChannel newByteChannel(Path path, Set<? extends OpenOption> options, FileAttribute<?>... attrs) throws IOException {
+        RemappedPath target = check(path);
+        for (OpenOption option : options) {
+            if (option == StandardOpenOption.WRITE || option == StandardOpenOption.APPEND || option == StandardOpenOption.CREATE_NEW || option == StandardOpenOption.DELETE_ON_CLOSE)
+                throw new ReadOnlyFileSystemException();
+        }
+
+        String entry = target.getEntryName();
+        byte[] data = target.getFileSystem().read(entry);
+        if (data == null) {
+            if (target.getFileSystem().isDirectory(entry))
+                throw new FileSystemException(path.toString(), null, "Is a directory");
+            throw new NoSuchFileException(path.toString());
+        }
+        return new ReadOnlyChannel(data);
+    }
+
+    @Override
+    public DirectoryStream<Path> newDirectoryStream(Path dir, DirectoryStream.Filter<? super Path> filter) throws IOException {
+        RemappedPath target = check(dir);
+        String entry = target.getEntryName();
+        Set<String> children = target.getFileSystem().list(entry);
+        if (children == null) {
+            if (target.getFileSystem().exists(entry))
+                throw new NotDirectoryException(dir.toString());
+            throw new NoSuchFileException(dir.toString());
+        }
+
+        List<Path> ret = new ArrayList<>();
+        for (String child : children) {
+            Path resolved = dir.resolve(child.substring(child.lastIndexOf('/') + 1));
+            if (filter == null || filter.accept(resolved))
+                ret.add(resolved);
+        }
+
+        return new DirectoryStream<Path>() {
+            @Override
+            public Iterator<Path> iterator() {
+                return ret.iterator();
+            }
+
+            @Override
+            public void close() {}
+        };
+    }
+
+    @Override
+    public void createDirectory(Path dir, FileAttribute<?>... attrs) throws IOException {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    @Override
+    public void delete(Path path) throws IOException {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    @Override
+    public void copy(Path source, Path target, CopyOption... options) throws IOException {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    @Override
+    public void move(Path source, Path target, CopyOption... options) throws IOException {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    @Override
+    public boolean isSameFile(Path path, Path path2) throws IOException {
+        return path.toAbsolutePath().normalize().equals(path2.toAbsolutePath().normalize());
+    }
+
+    @Override
+    public boolean isHidden(Path path) throws IOException {
+        return false;
+    }
+
+    @Override
+    public FileStore getFileStore(Path path) throws IOException {
+        RemappedPath target = check(path);
+        if (!target.getFileSystem().exists(target.getEntryName()))
+            throw new NoSuchFileException(path.toString());
+        return target.getFileSystem().getFileStore();
+    }
+
+    @Override
+    public void checkAccess(Path path, AccessMode... modes) throws IOException {
+        RemappedPath target = check(path);
+        if (!target.getFileSystem().exists(target.getEntryName()))
+            throw new NoSuchFileException(path.toString());
+        for (AccessMode mode : modes) {
+            if (mode == AccessMode.WRITE)
+                throw new ReadOnlyFileSystemException();
+            if (mode == AccessMode.EXECUTE)
+                throw new AccessDeniedException(path.toString());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <V extends FileAttributeView> V getFileAttributeView(Path path, Class<V> type, LinkOption... options) {
+        RemappedPath target = check(path);
+        if (type != BasicFileAttributeView.class)
+            return null;
+
+        return (V)new BasicFileAttributeView() {
+            @Override
+            public String name() {
+                return "basic";
+            }
+
+            @Override
+            public BasicFileAttributes readAttributes() throws IOException {
+                return RemappedFileSystemProvider.this.readAttributes(target, BasicFileAttributes.class);
+            }
+
+            @Override
+            public void setTimes(FileTime lastModifiedTime, FileTime lastAccessTime, FileTime createTime) {
+                throw new ReadOnlyFileSystemException();
+            }
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <A extends BasicFileAttributes> A readAttributes(Path path, Class<A> type, LinkOption... options) throws IOException {
+        if (type != BasicFileAttributes.class)
+            throw new UnsupportedOperationException("Unsupported attributes: " + type.getName());
+
+        RemappedPath target = check(path);
+        String entry = target.getEntryName();
+        RemappedFileSystem fs = target.getFileSystem();
+        if (!fs.exists(entry))
+            throw new NoSuchFileException(path.toString());
+
+        // Only renaming the entry tells us its size, so leave that until someone asks for it
+        boolean directory = fs.isDirectory(entry);
+        return (A)new BasicFileAttributes() {
+            @Override public FileTime lastModifiedTime() { return TIME; }
+            @Override public FileTime lastAccessTime()   { return TIME; }
+            @Override public FileTime creationTime()     { return TIME; }
+            @Override public boolean isRegularFile()     { return !directory; }
+            @Override public boolean isDirectory()       { return directory; }
+            @Override public boolean isSymbolicLink()    { return false; }
+            @Override public boolean isOther()           { return false; }
+            @Override public long size()                 { return directory ? 0 : sizeOf(fs, entry); }
+            @Override public Object fileKey()            { return null; }
+        };
+    }
+
+    @Override
+    public Map<String, Object> readAttributes(Path path, String attributes, LinkOption... options) throws IOException {
+        int idx = attributes.indexOf(':');
+        if (idx != -1) {
+            if (!"basic".equals(attributes.substring(0, idx)))
+                throw new UnsupportedOperationException("Unsupported attributes: " + attributes);
+            attributes = attributes.substring(idx + 1);
+        }
+
+        BasicFileAttributes attrs = readAttributes(path, BasicFileAttributes.class);
+        Map<String, Object> all = new LinkedHashMap<>();
+        all.put("lastModifiedTime", attrs.lastModifiedTime());
+        all.put("lastAccessTime", attrs.lastAccessTime());
+        all.put("creationTime", attrs.creationTime());
+        all.put("size", attrs.size());
+        all.put("isRegularFile", attrs.isRegularFile());
+        all.put("isDirectory", attrs.isDirectory());
+        all.put("isSymbolicLink", attrs.isSymbolicLink());
+        all.put("isOther", attrs.isOther());
+        all.put("fileKey", attrs.fileKey());
+
+        if ("*".equals(attributes))
+            return all;
+
+        Map<String, Object> ret = new LinkedHashMap<>();
+        for (String name : attributes.split(",")) {
+            if (!all.containsKey(name))
+                throw new IllegalArgumentException("Unknown attribute: " + name);
+            ret.put(name, all.get(name));
+        }
+        return ret;
+    }
+
+    @Override
+    public void setAttribute(Path path, String attribute, Object value, LinkOption... options) throws IOException {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    private static long sizeOf(RemappedFileSystem fs, String entry) {
+        try {
+            return fs.size(entry);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static class ReadOnlyChannel implements SeekableByteChannel {
+        private final byte[] data;
+        private int position = 0;
+        private boolean open = true;
+
+        private ReadOnlyChannel(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public synchronized int read(ByteBuffer dst) throws IOException {
+            if (!open)
+                throw new ClosedChannelException();
+            if (position >= data.length)
+                return -1;
+            int len = Math.min(dst.remaining(), data.length - position);
+            dst.put(data, position, len);
+            position += len;
+            return len;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public synchronized long position() throws IOException {
+            if (!open)
+                throw new ClosedChannelException();
+            return position;
+        }
+
+        @Override
+        public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+            if (!open)
+                throw new ClosedChannelException();
+            if (newPosition < 0)
+                throw new IllegalArgumentException("Negative position");
+            position = (int)Math.min(newPosition, data.length);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            if (!open)
+                throw new ClosedChannelException();
+            return data.length;
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long size) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public synchronized boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public synchronized void close() {
+            open = false;
+        }
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright (c) LexManos
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+package net.minecraftforge.lex.mappingtoy;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/*
+ * Path inside a RemappedFileSystem. Just a '/' separated string, absolute if it starts with '/'.
+ */
+class RemappedPath implements Path {
+    private final RemappedFileSystem fs;
+    private final String path;
+    private String[] parts;
+
+    RemappedPath(RemappedFileSystem fs, String path) {
+        this.fs = fs;
+        this.path = clean(path);
+    }
+
+    // Collapses repeated separators and drops any trailing one, except for the root itself.
+    private static String clean(String path) {
+        StringBuilder buf = new StringBuilder(path.length());
+        for (int x = 0; x < path.length(); x++) {
+            char c = path.charAt(x);
+            if (c == '/' && buf.length() > 0 && buf.charAt(buf.length() - 1) == '/')
+                continue;
+            buf.append(c);
+        }
+        if (buf.length() > 1 && buf.charAt(buf.length() - 1) == '/')
+            buf.setLength(buf.length() - 1);
+        return buf.toString();
+    }
+
+    private String[] parts() {
+        if (parts == null) {
+            String rel = isAbsolute() ? path.substring(1) : path;
+            parts = rel.isEmpty() ? new String[0] : rel.split("/");
+        }
+        return parts;
+    }
+
+    private RemappedPath from(String[] parts, int start, int end, boolean absolute) {
+        return new RemappedPath(fs, (absolute ? "/" : "") + String.join("/", Arrays.copyOfRange(parts, start, end)));
+    }
+
+    private RemappedPath check(Path other) {
+        if (!(other instanceof RemappedPath) || ((RemappedPath)other).fs != fs)
+            throw new ProviderMismatchException();
+        return (RemappedPath)other;
+    }
+
+    // Entry name in the jar, without the leading separator.
+    String getEntryName() {
+        String abs = toAbsolutePath().normalize().toString();
+        return abs.substring(1);
+    }
+
+    @Override
+    public RemappedFileSystem getFileSystem() {
+        return fs;
+    }
+
+    @Override
+    public boolean isAbsolute() {
+        return path.startsWith("/");
+    }
+
+    @Override
+    public Path getRoot() {
+        return isAbsolute() ? new RemappedPath(fs, "/") : null;
+    }
+
+    @Override
+    public Path getFileName() {
+        String[] parts = parts();
+        if (parts.length == 0)
+            return path.isEmpty() ? this : null;
+        return new RemappedPath(fs, parts[parts.length - 1]);
+    }
+
+    @Override
+    public Path getParent() {
+        String[] parts = parts();
+        if (parts.length == 0 || (parts.length == 1 && !isAbsolute()))
+            return null;
+        return from(parts, 0, parts.length - 1, isAbsolute());
+    }
+
+    @Override
+    public int getNameCount() {
+        return parts().length;
+    }
+
+    @Override
+    public Path getName(int index) {
+        String[] parts = parts();
+        if (index < 0 || index >= parts.length)
+            throw new IllegalArgumentException();
+        return new RemappedPath(fs, parts[index]);
+    }
+
+    @Override
+    public Path subpath(int beginIndex, int endIndex) {
+        String[] parts = parts();
+        if (beginIndex < 0 || beginIndex >= parts.length || endIndex > parts.length || beginIndex >= endIndex)
+            throw new IllegalArgumentException();
+        return from(parts, beginIndex, endIndex, false);
+    }
+
+    @Override
+    public boolean startsWith(Path other) {
+        if (!(other instanceof RemappedPath) || ((RemappedPath)other).fs != fs)
+            return false;
+        RemappedPath o = (RemappedPath)other;
+        if (o.isAbsolute() != isAbsolute() || o.parts().length > parts().length)
+            return false;
+        for (int x = 0; x < o.parts().length; x++) {
+            if (!o.parts()[x].equals(parts()[x]))
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean startsWith(String other) {
+        return startsWith(new RemappedPath(fs, other));
+    }
+
+    @Override
+    public boolean endsWith(Path other) {
+        if (!(other instanceof RemappedPath) || ((RemappedPath)other).fs != fs)
+            return false;
+        RemappedPath o = (RemappedPath)other;
+        if (o.isAbsolute())
+            return equals(o);
+        int offset = parts().length - o.parts().length;
+        if (offset < 0 || o.path.isEmpty())
+            return false;
+        for (int x = 0; x < o.parts().length; x++) {
+            if (!o.parts()[x].equals(parts()[offset + x]))
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean endsWith(String other) {
+        return endsWith(new RemappedPath(fs, other));
+    }
+
+    @Override
+    public Path normalize() {
+        List<String> ret = new ArrayList<>();
+        for (String part : parts()) {
+            if (part.equals("."))
+                continue;
+            if (part.equals("..") && !ret.isEmpty() && !ret.get(ret.size() - 1).equals(".."))
+                ret.remove(ret.size() - 1);
+            else if (!part.equals("..") || !isAbsolute())
+                ret.add(part);
+        }
+        return from(ret.toArray(new String[0]), 0, ret.size(), isAbsolute());
+    }
+
+    @Override
+    public Path resolve(Path other) {
+        RemappedPath o = check(other);
+        if (o.isAbsolute())
+            return o;
+        if (o.path.isEmpty())
+            return this;
+        if (path.isEmpty())
+            return o;
+        return new RemappedPath(fs, path + '/' + o.path);
+    }
+
+    @Override
+    public Path resolve(String other) {
+        return resolve(new RemappedPath(fs, other));
+    }
+
+    @Override
+    public Path resolveSibling(Path other) {
+        Path parent = getParent();
+        return parent == null ? check(other) : parent.resolve(other);
+    }
+
+    @Override
+    public Path resolveSibling(String other) {
+        return resolveSibling(new RemappedPath(fs, other));
+    }
+
+    @Override
+    public Path relativize(Path other) {
+        RemappedPath o = check(other);
+        if (o.isAbsolute() != isAbsolute())
+            throw new IllegalArgumentException("Can only relativize paths of the same type");
+
+        String[] mine = parts();
+        String[] theirs = o.parts();
+        int common = 0;
+        while (common < mine.length && common < theirs.length && mine[common].equals(theirs[common]))
+            common++;
+
+        List<String> ret = new ArrayList<>();
+        for (int x = common; x < mine.length; x++)
+            ret.add("..");
+        ret.addAll(Arrays.asList(theirs).subList(common, theirs.length));
+        return new RemappedPath(fs, String.join("/", ret));
+    }
+
+    @Override
+    public URI toUri() {
+        return fs.toUri(toAbsolutePath().normalize().toString());
+    }
+
+    @Override
+    public Path toAbsolutePath() {
+        return isAbsolute() ? this : new RemappedPath(fs, "/" + path);
+    }
+
+    @Override
+    public Path toRealPath(LinkOption... options) throws IOException {
+        RemappedPath ret = (RemappedPath)toAbsolutePath().normalize();
+        if (!fs.exists(ret.getEntryName()))
+            throw new NoSuchFileException(ret.toString());
+        return ret;
+    }
+
+    @Override
+    public File toFile() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public WatchKey register(WatchService watcher, WatchEvent.Kind<?>[] events, WatchEvent.Modifier... modifiers) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public WatchKey register(WatchService watcher, WatchEvent.Kind<?>... events) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Iterator<Path> iterator() {
+        List<Path> ret = new ArrayList<>();
+        for (int x = 0; x < getNameCount(); x++)
+            ret.add(getName(x));
+        return ret.iterator();
+    }
+
+    @Override
+    public int compareTo(Path other) {
+        return path.compareTo(check(other).path);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof RemappedPath && ((RemappedPath)other).fs == fs && ((RemappedPath)other).path.equals(path);
+    }
+
+    @Override
+    public int hashCode() {
+        return path.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return path;
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) LexManos
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+package net.minecraftforge.lex.mappingtoy;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+
+/*
+ * Stages of a version's run that have already finished, so a run that was interrupted picks up where
+ * it stopped instead of starting over. Mostly matters for --force, where existing outputs would
+ * otherwise all be rebuilt again.
+ *
+ * Kept in the version's folder as journal.json, rewritten after every stage with the outputs the stage
+ * made and their sizes. Only used again by a run with the same key, and deleted once the whole
+ * version is recorded in outputs.json.
+ */
+public class RunJournal {
+    private static final String FILENAME = "journal.json";
+
+    String key;
+    Map<String, Map<String, Long>> stages = new TreeMap<>();
+    private transient Path root;
+
+    public static RunJournal open(Path root, String key) {
+        Path file = root.resolve(FILENAME);
+        RunJournal ret = null;
+        if (Files.isRegularFile(file)) {
+            try {
+                ret = Utils.loadJson(file, RunJournal.class);
+            } catch (IOException | RuntimeException e) {
+                MappingToy.log.log(Level.WARNING, "  Invalid " + FILENAME + ": " + e.getMessage());
+            }
+        }
+
+        if (ret == null || !key.equals(ret.key) || ret.stages == null) {
+            ret = new RunJournal();
+            ret.key = key;
+        } else if (!ret.stages.isEmpty()) {
+            MappingToy.log.info("  Resuming: " + String.join(", ", ret.stages.keySet()));
+        }
+        ret.root = root;
+        return ret;
+    }
+
+    // Finished by this run or the one it's resuming, and every output is still there untouched.
+    public synchronized boolean isDone(String stage) {
+        Map<String, Long> outputs = stages.get(stage);
+        if (outputs == null)
+            return false;
+
+        try {
+            for (Map.Entry<String, Long> entry : outputs.entrySet()) {
+                Path target = root.resolve(entry.getKey());
+                if (!Files.isRegularFile(target) || Files.size(target) != entry.getValue())
+                    return false;
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /*
+     * Stages log their own failures instead of throwing, so one only counts as done if all of its
+     * outputs actually exist.
+     */
+    public synchronized void done(String stage, Collection<String> outputs) {
+        try {
+            Map<String, Long> sizes = new TreeMap<>();
+            for (String name : outputs) {
+                Path target = root.resolve(name);
+                if (!Files.isRegularFile(target))
+                    return;
+                sizes.put(name, Files.size(target));
+            }
+            stages.put(stage, sizes);
+            Utils.writeJson(root.resolve(FILENAME), this);
+        } catch (IOException e) {
+            MappingToy.log.log(Level.WARNING, "  Failed to write " + FILENAME + ": " + e.getMessage());
+        }
+    }
+
+    // The version is complete, the next run starts from scratch.
+    public void finish() {
+        try {
+            Files.deleteIfExists(root.resolve(FILENAME));
+        } catch (IOException e) {
+            MappingToy.log.log(Level.WARNING, "  Failed to delete " + FILENAME + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) LexManos
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+package net.minecraftforge.lex.mappingtoy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import net.minecraftforge.mergetool.AnnotationVersion;
+
+/*
+ * The side marker annotations the merger puts on client or server only classes and members.
+ * Everything is read from the annotation classes mergetool's AnnotationVersion injects, so the
+ * descriptors always match what mergetool itself would write.
+ */
+public final class SideAnnotation {
+    private static final Map<AnnotationVersion, SideAnnotation> CACHE = new EnumMap<>(AnnotationVersion.class);
+
+    private final List<String> classes;
+    private String holder;
+    private String type;
+    private String client;
+    private String server;
+    private String interfaces;
+    private String interfaceElement;
+
+    private SideAnnotation(AnnotationVersion version) throws IOException {
+        this.classes = new ArrayList<>(version.getClasses());
+        for (String cls : this.classes) {
+            ClassNode node = new ClassNode();
+            new ClassReader(readClass(cls)).accept(node, ClassReader.SKIP_CODE);
+            String desc = 'L' + node.name + ';';
+
+            if ((node.access & Opcodes.ACC_ENUM) != 0) {
+                // Declared client first, then server: CLIENT, SERVER or CLIENT, DEDICATED_SERVER
+                List<String> values = node.fields.stream().filter(f -> (f.access & Opcodes.ACC_ENUM) != 0).map(f -> f.name).collect(Collectors.toList());
+                if (values.size() < 2)
+                    throw new IOException("Invalid side enum " + cls + " for " + version);
+                this.type = desc;
+                this.client = values.get(0);
+                this.server = values.get(1);
+            } else if ((node.access & Opcodes.ACC_ANNOTATION) != 0) {
+                for (MethodNode mtd : node.methods) {
+                    Type ret = Type.getReturnType(mtd.desc);
+                    if ("value".equals(mtd.name) && ret.getSort() == Type.ARRAY)
+                        this.interfaces = desc;
+                    else if ("value".equals(mtd.name))
+                        this.holder = desc;
+                    else if ("Ljava/lang/Class;".equals(ret.getDescriptor()))
+                        this.interfaceElement = mtd.name;
+                }
+            }
+        }
+
+        if (this.holder == null || this.type == null)
+            throw new IOException("Could not find side annotation in " + this.classes + " for " + version);
+    }
+
+    public static SideAnnotation from(AnnotationVersion version) throws IOException {
+        if (version == null)
+            return null;
+        synchronized (CACHE) {
+            SideAnnotation ret = CACHE.get(version);
+            if (ret == null) {
+                ret = new SideAnnotation(version);
+                CACHE.put(version, ret);
+            }
+            return ret;
+        }
+    }
+
+    public static SideAnnotation fromVersion(String version) throws IOException {
+        return from(AnnotationVersion.fromVersion(version));
+    }
+
+    public String getHolder() {
+        return this.holder;
+    }
+
+    public String getType() {
+        return this.type;
+    }
+
+    public String getClient() {
+        return this.client;
+    }
+
+    public String getServer() {
+        return this.server;
+    }
+
+    // Only the newer annotations can mark interfaces, null otherwise
+    public String getInterfaces() {
+        return this.interfaceElement == null ? null : this.interfaces;
+    }
+
+    public String getInterfaceElement() {
+        return this.interfaceElement;
+    }
+
+    /*
+     * Internal names of the annotation classes themselves, which mergetool injects into the joined jar
+     * so it can be used without Forge on the classpath.
+     */
+    public List<String> getClasses() {
+        return this.classes;
+    }
+
+    // Read from mergetool's own jar, the same copy it injects.
+    public static byte[] readClass(String cls) throws IOException {
+        try (InputStream in = AnnotationVersion.class.getResourceAsStream('/' + cls + ".class")) {
+            if (in == null)
+                throw new IOException("Missing side annotation class: " + cls);
+            ByteArrayOutputStream ret = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int len;
+            while ((len = in.read(buf)) != -1)
+                ret.write(buf, 0, len);
+            return ret.toByteArray();
+        }
+    }
+
+    public boolean isSide(String desc) {
+        return this.holder.equals(desc) || desc.equals(this.interfaces);
+    }
+
+    /*
+     * Returns the class without any of our side annotations, which is what the merger would have
+     * produced if it was run without annotating.
+     */
+    public byte[] strip(byte[] data) {
+        ClassReader reader = new ClassReader(data);
+        ClassWriter writer = new ClassWriter(0);
+        reader.accept(new ClassVisitor(Opcodes.ASM9, writer) {
+            @Override
+            public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+                return isSide(desc) ? null : super.visitAnnotation(desc, visible);
+            }
+
+            @Override
+            public FieldVisitor visitField(int access, String name, String desc, String signature, Object value) {
+                return new FieldVisitor(Opcodes.ASM9, super.visitField(access, name, desc, signature, value)) {
+                    @Override
+                    public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+                        return isSide(desc) ? null : super.visitAnnotation(desc, visible);
+                    }
+                };
+            }
+
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+                return new MethodVisitor(Opcodes.ASM9, super.visitMethod(access, name, desc, signature, exceptions)) {
+                    @Override
+                    public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+                        return isSide(desc) ? null : super.visitAnnotation(desc, visible);
+                    }
+                };
+            }
+        }, 0);
+        return writer.toByteArray();
+    }
+}
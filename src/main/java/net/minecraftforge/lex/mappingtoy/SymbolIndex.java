@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) LexManos
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+package net.minecraftforge.lex.mappingtoy;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
+import java.util.logging.Level;
+
+import net.minecraftforge.srgutils.MinecraftVersion;
+
+/*
+ * Which versions every class, field and method name shows up in, both deobfuscated and obfuscated.
+ *
+ * Each version gets its own sorted symbols.txt when it's processed, covering both the client and server
+ * mappings, one line per name: the name and 'n' for deobfuscated or 'o' for obfuscated. Classes are
+ * written as a/b/C, fields as a/b/C.field and methods as a/b/C.method(desc), obfuscated members use the
+ * obfuscated owner and descriptor.
+ *
+ * At the end of a run, if any of those changed, they're merged into a single sorted symbols.idx in the
+ * output folder. Each line is the name, the side, and the versions it's in as a list of ranges of
+ * consecutive versions. A version that isn't indexed always ends a range, so a range never claims
+ * versions we know nothing about. Being sorted, lookups are a binary search over the file without
+ * reading the rest of it.
+ */
+public class SymbolIndex {
+    public static final String FILENAME = "symbols.txt";
+    private static final String INDEX = "symbols.idx";
+
+    public static void writeVersion(Path root, CachedMappings client, CachedMappings server, boolean force) {
+        Path target = root.resolve(FILENAME);
+        if ((client == null && server == null) || (!force && Files.isRegularFile(target)))
+            return;
+
+        MappingToy.log.info("  " + target.getFileName());
+        try {
+            TreeSet<String> lines = new TreeSet<>();
+            if (client != null)
+                addLines(lines, client.getForward());
+            if (server != null)
+                addLines(lines, server.getForward());
+            Utils.writeAtomic(target, tmp -> Files.write(tmp, lines, StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            MappingToy.log.log(Level.WARNING, "    Failed: " + e.getMessage(), e);
+        }
+    }
+
+    private static void addLines(TreeSet<String> lines, Mappings map) {
+        for (int cls = 0; cls < map.getClassCount(); cls++) {
+            String named = map.getClassOriginal(cls);
+            String obf = map.getClassMapped(cls);
+            lines.add(named + " n");
+            lines.add(obf + " o");
+
+            for (int fld = map.getFieldStart(cls); fld < map.getFieldEnd(cls); fld++) {
+                lines.add(named + '.' + map.getFieldOriginal(fld) + " n");
+                lines.add(obf + '.' + map.getFieldMapped(fld) + " o");
+            }
+
+            for (int mtd = map.getMethodStart(cls); mtd < map.getMethodEnd(cls); mtd++) {
+                lines.add(named + '.' + map.getMethodOriginal(mtd) + map.getMethodDescriptor(mtd) + " n");
+                lines.add(obf + '.' + map.getMethodMapped(mtd) + map.getMethodMappedDescriptor(mtd) + " o");
+            }
+        }
+    }
+
+    /*
+     * Rebuilds the merged index if any version's symbols are newer than it, or versions were added or removed.
+     * Every version file is already sorted, so this is a single streaming merge over all of them.
+     * The versions are every known version, indexed or not, so ranges can tell where the gaps are.
+     */
+    public static void update(Path output, Collection<MinecraftVersion> versions) {
+        Path index = output.resolve(INDEX);
+        List<String> names = new ArrayList<>();
+        List<Integer> positions = new ArrayList<>();
+        List<Path> files = new ArrayList<>();
+        try {
+            long indexTime = Files.isRegularFile(index) ? Files.getLastModifiedTime(index).toMillis() : -1;
+            boolean stale = indexTime == -1;
+            int position = 0;
+            for (MinecraftVersion ver : new TreeSet<>(versions)) {
+                Path file = output.resolve(ver.toString()).resolve(FILENAME);
+                if (!Files.isRegularFile(file)) {
+                    position++;
+                    continue;
+                }
+                names.add(ver.toString());
+                positions.add(position++);
+                files.add(file);
+                stale |= Files.getLastModifiedTime(file).toMillis() > indexTime;
+            }
+
+            // Gaps are part of the header, a newly known version between two indexed ones splits their ranges
+            List<String> described = new ArrayList<>();
+            for (int x = 0; x < names.size(); x++)
+                described.add(x != 0 && positions.get(x) != positions.get(x - 1) + 1 ? "~" + names.get(x) : names.get(x));
+            String header = "# " + String.join(",", described);
+            if (!stale) {
+                try (BufferedReader reader = Files.newBufferedReader(index)) {
+                    stale = !header.equals(reader.readLine());
+                }
+            }
+            if (!stale || files.isEmpty())
+                return;
+
+            MappingToy.log.info("Symbol Index: " + files.size() + " versions");
+            Utils.writeAtomic(index, tmp -> {
+                try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                    writer.write(header);
+                    writer.write('\n');
+                    merge(files, names, positions, writer);
+                }
+            });
+        } catch (IOException e) {
+            MappingToy.log.log(Level.WARNING, "  Failed to update symbol index: " + e.getMessage(), e);
+        }
+    }
+
+    private static void merge(List<Path> files, List<String> names, List<Integer> positions, Writer writer) throws IOException {
+        List<BufferedReader> readers = new ArrayList<>();
+        try {
+            // {line, version index}, ordered by line then version so each line's versions come out in order
+            PriorityQueue<Object[]> queue = new PriorityQueue<>((a, b) -> {
+                int ret = ((String)a[0]).compareTo((String)b[0]);
+                return ret != 0 ? ret : Integer.compare((Integer)a[1], (Integer)b[1]);
+            });
+            for (int x = 0; x < files.size(); x++) {
+                BufferedReader reader = Files.newBufferedReader(files.get(x));
+                readers.add(reader);
+                String line = reader.readLine();
+                if (line != null)
+                    queue.add(new Object[] { line, x });
+            }
+
+            while (!queue.isEmpty()) {
+                String line = (String)queue.peek()[0];
+                StringBuilder ranges = new StringBuilder();
+                int start = -1;
+                int last = -1;
+                while (!queue.isEmpty() && queue.peek()[0].equals(line)) {
+                    Object[] next = queue.poll();
+                    int ver = (Integer)next[1];
+                    if (start != -1 && positions.get(ver) != positions.get(last) + 1) {
+                        appendRange(ranges, names, start, last);
+                        start = -1;
+                    }
+                    if (start == -1)
+                        start = ver;
+                    last = ver;
+
+                    String read = readers.get(ver).readLine();
+                    if (read != null)
+                        queue.add(new Object[] { read, ver });
+                }
+                appendRange(ranges, names, start, last);
+
+                writer.write(line);
+                writer.write(' ');
+                writer.write(ranges.toString());
+                writer.write('\n');
+            }
+        } finally {
+            for (BufferedReader reader : readers)
+                reader.close();
+        }
+    }
+
+    private static void appendRange(StringBuilder buf, List<String> names, int start, int end) {
+        if (buf.length() != 0)
+            buf.append(',');
+        buf.append(names.get(start));
+        if (end != start)
+            buf.append("..").append(names.get(end));
+    }
+
+    /*
+     * Every index line for the name, or every name starting with it if it ends with '*'.
+     */
+    public static List<String> query(Path output, String query) throws IOException {
+        boolean prefix = query.endsWith("*");
+        String key = prefix ? query.substring(0, query.length() - 1) : query + ' ';
+        List<String> ret = new ArrayList<>();
+
+        Path index = output.resolve(INDEX);
+        if (!Files.isRegularFile(index))
+            return ret;
+
+        try (RandomAccessFile file = new RandomAccessFile(index.toFile(), "r")) {
+            // Find the first line that sorts at or after the key, the header sorts before everything we could be asked for.
+            long lo = 0;
+            long hi = file.length();
+            while (lo < hi) {
+                long mid = (lo + hi) >>> 1;
+                String line = lineAfter(file, mid);
+                if (line == null || line.compareTo(key) >= 0)
+                    hi = mid;
+                else
+                    lo = mid + 1;
+            }
+
+            String line = lineAfter(file, lo);
+            while (line != null && line.startsWith(key)) {
+                ret.add(line);
+                line = readLine(file);
+            }
+        }
+        return ret;
+    }
+
+    // The first full line starting after the position, or the first line if it's 0.
+    private static String lineAfter(RandomAccessFile file, long pos) throws IOException {
+        file.seek(pos);
+        if (pos != 0)
+            file.readLine();
+        return readLine(file);
+    }
+
+    private static String readLine(RandomAccessFile file) throws IOException {
+        String line = file.readLine();
+        return line == null ? null : new String(line.getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8);
+    }
+}
@@ -17,13 +17,18 @@ import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.Date;
 import java.util.Locale;
 import java.util.TimeZone;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
-import java.util.zip.ZipEntry;
 
 import org.objectweb.asm.tree.InsnList;
 import org.objectweb.asm.util.Printer;
@@ -38,6 +43,8 @@ import static org.objectweb.asm.Opcodes.*;
 public class Utils {
     public static final Gson GSON = new GsonBuilder().registerTypeAdapter(Date.class, new DateTypeAdapter()).setPrettyPrinting().create();
     public static final TimeZone GMT = TimeZone.getTimeZone("GMT");
+    public static final long STABLE_TIME = 628041600000L;
+    public static final String TEMP_SUFFIX = ".tmp";
 
     public static boolean downloadFileEtag(Path file, String url)                               { return downloadFileEtag(file, url,          false        ); }
     public static boolean downloadFileEtag(Path file, String url, boolean force)                { return downloadFileEtag(file, url,          force, "  "  ); }
@@ -72,14 +79,18 @@ public class Utils {
 
             MappingToy.log.info(prefix + file.toString() + " From: " + url.toString());
 
-            try (InputStream in = connection.getInputStream();
-                 OutputStream out = Files.newOutputStream(file);) {
-                copy(in, out);
+            try (InputStream in = connection.getInputStream()) {
+                writeAtomic(file, tmp -> {
+                    try (OutputStream out = Files.newOutputStream(tmp)) {
+                        copy(in, out);
+                    }
+                });
             }
 
             if (etag == null) return true; //No-etag, don't store it
 
-            Files.write(etagFile, etag.getBytes());
+            byte[] etagData = etag.getBytes();
+            writeAtomic(etagFile, tmp -> Files.write(tmp, etagData));
 
             if (!"AmazonS3".equals(connection.getHeaderField("server")) || etag.contains("-")) return true; // Etag is not from AmazonS3 which uses plain md5 hashes or the file is a multipart upload in which case the etag is the md5 hash of all parts concatenated after being decoded from hex, assume valid
             String md5 = HashFunction.MD5.hash(file);
@@ -111,9 +122,12 @@ public class Utils {
             connection.connect();
 
 
-            try (InputStream in = connection.getInputStream();
-                 OutputStream out = Files.newOutputStream(file);) {
-                copy(in, out);
+            try (InputStream in = connection.getInputStream()) {
+                writeAtomic(file, tmp -> {
+                    try (OutputStream out = Files.newOutputStream(tmp)) {
+                        copy(in, out);
+                    }
+                });
             }
 
             return true;
@@ -159,6 +173,25 @@ public class Utils {
         return count;
     }
 
+    // Future.get that unwraps the actual failure so callers can keep their normal IOException handling.
+    public static <T> T getFuture(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException)cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException)cause;
+            if (cause instanceof Error)
+                throw (Error)cause;
+            throw new IOException(cause);
+        }
+    }
+
     public static <T> T loadJson(Path target, Class<T> clz) throws IOException {
         try (InputStream in = Files.newInputStream(target)) {
             return GSON.fromJson(new InputStreamReader(in, StandardCharsets.UTF_8), clz);
@@ -166,7 +199,58 @@ public class Utils {
     }
 
     public static void writeJson(Path target, Object obj) throws IOException {
-        Files.write(target, GSON.toJson(obj).getBytes());
+        byte[] data = GSON.toJson(obj).getBytes();
+        writeAtomic(target, tmp -> Files.write(tmp, data));
+    }
+
+    public interface TempWriter {
+        void write(Path tmp) throws IOException;
+    }
+
+    /*
+     * Outputs are written to a temp file next to the target and moved over it once complete, so an
+     * interrupted run never leaves a partial file that later runs would take as finished.
+     */
+    public static void writeAtomic(Path target, TempWriter writer) throws IOException {
+        Path tmp = tempFile(target);
+        try {
+            writer.write(tmp);
+            commit(tmp, target);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    public static Path tempFile(Path target) throws IOException {
+        return Files.createTempFile(target.toAbsolutePath().getParent(), target.getFileName() + ".", TEMP_SUFFIX);
+    }
+
+    public static void commit(Path tmp, Path target) throws IOException {
+        try {
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    // Temp files left behind by a run that died, those last written before the time in milliseconds.
+    public static void deleteTempFiles(Path dir, long before) throws IOException {
+        if (!Files.isDirectory(dir))
+            return;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                if (Files.isDirectory(file)) {
+                    deleteTempFiles(file, before);
+                } else if (file.getFileName().toString().endsWith(TEMP_SUFFIX)) {
+                    try {
+                        if (Files.getLastModifiedTime(file).toMillis() < before)
+                            Files.delete(file);
+                    } catch (NoSuchFileException e) {
+                        // Committed or cleaned up while we were looking
+                    }
+                }
+            }
+        }
     }
 
     public static Path findMinecraftHome() {
@@ -181,15 +265,6 @@ public class Utils {
             return new File(userHomeDir, ".minecraft").toPath();
     }
 
-    public static ZipEntry getStableEntry(String name) {
-        TimeZone _default = TimeZone.getDefault();
-        TimeZone.setDefault(GMT);
-        ZipEntry ret = new ZipEntry(name);
-        ret.setTime(628041600000L);
-        TimeZone.setDefault(_default);
-        return ret;
-    }
-
     private static int[]    FLAGS = new int[]   {ACC_PUBLIC, ACC_PRIVATE, ACC_PROTECTED, ACC_STATIC, ACC_FINAL, ACC_SUPER, ACC_SYNCHRONIZED, ACC_VOLATILE, ACC_BRIDGE, ACC_VARARGS, ACC_TRANSIENT, ACC_NATIVE, ACC_INTERFACE, ACC_ABSTRACT, ACC_STRICT, ACC_SYNTHETIC, ACC_ANNOTATION, ACC_ENUM};
     private static String[] NAMES = new String[]{  "public",   "private",   "protected",   "static",   "final",   "super",   "synchronized",   "volitize",   "bridge",   "varargs",   "transient",   "native",   "interface",   "abstract",   "strict",   "synthetic",   "annotation",   "enum"};
     public static String getAccess(int access) {
@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) LexManos
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+package net.minecraftforge.lex.mappingtoy;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import static net.minecraftforge.lex.mappingtoy.MappingToy.log;
+
+/*
+ * Lets several processes, on one machine or many, share an output folder by claiming versions
+ * through lease files in output/leases, with nothing else to coordinate them.
+ *
+ * A lease holds the owner's id. It's written to a temp file first and then hard linked into place,
+ * which fails if the lease already exists, so only one process can make it and nobody ever sees it
+ * empty. While held it's touched every quarter of the timeout. A lease that hasn't been touched for
+ * the whole timeout belongs to a process that died, and is taken over by moving it aside first, since
+ * only one process can win that move. If it turns out to be fresh after all it's linked back the same
+ * way, so it never replaces a lease someone made in the meantime. Machines sharing a folder need
+ * clocks that roughly agree, the timeout should be a lot longer than any difference between them.
+ *
+ * A takeover racing the owner's heartbeat can still leave two processes thinking they hold the same
+ * lease. The heartbeat checks the owner every time, and once a lease stops being ours it's marked lost
+ * so whoever holds it can stop at the next check.
+ */
+public class VersionLeases implements Closeable {
+    public static final String DIR = "leases";
+    private static final String EXT = ".lease";
+
+    private final Path dir;
+    private final long timeout;
+    private final String owner;
+    private final Set<Lease> held = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService heartbeat;
+
+    // Timeout in milliseconds
+    public VersionLeases(Path output, long timeout) throws IOException {
+        this.dir = output.resolve(DIR);
+        this.timeout = timeout;
+        this.owner = ManagementFactory.getRuntimeMXBean().getName() + '/' + UUID.randomUUID();
+        Files.createDirectories(dir);
+
+        this.heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread ret = new Thread(r, "MappingToy-Lease");
+            ret.setDaemon(true);
+            return ret;
+        });
+        long interval = Math.max(1, timeout / 4);
+        this.heartbeat.scheduleWithFixedDelay(this::beat, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    public String getOwner() {
+        return this.owner;
+    }
+
+    // In milliseconds
+    public long getTimeout() {
+        return this.timeout;
+    }
+
+    /*
+     * Completes at the given time, without holding a thread while waiting.
+     */
+    public CompletableFuture<Void> at(long time) {
+        CompletableFuture<Void> ret = new CompletableFuture<>();
+        try {
+            heartbeat.schedule(() -> ret.complete(null), Math.max(0, time - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            ret.completeExceptionally(new IOException("Leases closed", e));
+        }
+        return ret;
+    }
+
+    /*
+     * Claims the name if nobody else holds it, or their lease went stale. Returns null if someone else has it.
+     */
+    public Lease claim(String name) throws IOException {
+        Path file = dir.resolve(name + EXT);
+        // Twice, so a stale lease we just moved out of the way can be replaced
+        for (int x = 0; x < 2; x++) {
+            Path tmp = Utils.tempFile(file);
+            try {
+                Files.write(tmp, owner.getBytes(StandardCharsets.UTF_8));
+                Files.createLink(file, tmp);
+                Lease ret = new Lease(name, file);
+                held.add(ret);
+                return ret;
+            } catch (FileAlreadyExistsException e) {
+                if (!takeOver(name, file))
+                    return null;
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Waits until the name can be claimed.
+     */
+    public Lease await(String name) throws IOException {
+        boolean logged = false;
+        while (true) {
+            Lease ret = claim(name);
+            if (ret != null)
+                return ret;
+
+            if (!logged) {
+                log.info("  Waiting for lease: " + name + " held by " + readOwner(dir.resolve(name + EXT)));
+                logged = true;
+            }
+            try {
+                Thread.sleep(Math.max(1, timeout / 4));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for lease " + name, e);
+            }
+        }
+    }
+
+    // True if the file is gone now, and claiming can be tried again.
+    private boolean takeOver(String name, Path file) throws IOException {
+        if (!isStale(file))
+            return false;
+
+        Path stale = dir.resolve(name + EXT + '.' + UUID.randomUUID() + ".stale");
+        try {
+            Files.move(file, stale, StandardCopyOption.ATOMIC_MOVE);
+        } catch (NoSuchFileException e) {
+            return true; // Released, or someone else moved it first
+        }
+
+        // The owner may have touched it between checking and moving, if so it goes back unless someone claimed it since
+        if (!isStale(stale)) {
+            try {
+                Files.createLink(file, stale);
+            } catch (FileAlreadyExistsException e) {
+                // Theirs now, the owner's heartbeat will notice
+            } finally {
+                Files.delete(stale);
+            }
+            return false;
+        }
+
+        log.info("  Taking over stale lease: " + name + " held by " + readOwner(stale));
+        Files.delete(stale);
+        return true;
+    }
+
+    private boolean isStale(Path file) throws IOException {
+        try {
+            FileTime modified = Files.getLastModifiedTime(file);
+            return System.currentTimeMillis() - modified.toMillis() > timeout;
+        } catch (NoSuchFileException e) {
+            return true;
+        }
+    }
+
+    private static String readOwner(Path file) {
+        try {
+            return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            return "unknown";
+        }
+    }
+
+    private void beat() {
+        for (Lease lease : held) {
+            if (!owner.equals(readOwner(lease.file))) {
+                log.warning("  Lost lease: " + lease.name + " now held by " + readOwner(lease.file));
+                lease.lost = true;
+                held.remove(lease);
+                continue;
+            }
+            try {
+                Files.setLastModifiedTime(lease.file, FileTime.fromMillis(System.currentTimeMillis()));
+            } catch (IOException e) {
+                log.log(Level.WARNING, "  Failed to renew lease: " + lease.name + " " + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        heartbeat.shutdownNow();
+        for (Lease lease : held)
+            lease.close();
+    }
+
+    public class Lease implements Closeable {
+        private final String name;
+        private final Path file;
+        private volatile boolean lost = false;
+
+        private Lease(String name, Path file) {
+            this.name = name;
+            this.file = file;
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        // Someone else took the lease over, anything still running under it should stop.
+        public void check() throws IOException {
+            if (lost)
+                throw new IOException("Lost lease: " + name + " now held by " + readOwner(file));
+        }
+
+        // Only deletes the file if it's still ours, a lease that was taken over belongs to someone else now.
+        @Override
+        public void close() {
+            if (!held.remove(this) || !owner.equals(readOwner(file)))
+                return;
+            try {
+                Files.delete(file);
+            } catch (IOException e) {
+                log.log(Level.WARNING, "  Failed to release lease: " + name + " " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,700 @@
+/*
+ * Copyright (c) LexManos
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+package net.minecraftforge.lex.mappingtoy;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.SoftReference;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.zip.Deflater;
+
+import net.minecraftforge.srgutils.IMappingFile;
+import net.minecraftforge.srgutils.MinecraftVersion;
+
+import static net.minecraftforge.lex.mappingtoy.MappingToy.log;
+
+/*
+ * Everything the command line does, for programs that want to run it themselves instead of starting
+ * a new process each time.
+ *
+ * An instance is meant to live as long as the program using it. The launcher manifest, each version's
+ * downloads and parsed mappings are kept between calls, so only the first use of a version pays for
+ * them. Every operation returns a future straight away and runs on the async executor, spreading the
+ * per class work over the worker executor. Operations wait on the workers, so the two can't be the
+ * same fixed size pool. Either can be passed in, anything not passed in is made here and shut down
+ * by close.
+ *
+ * Operations depend on each other the same way the command line stages do: renaming the joined jars
+ * merges first, metadata merges and renames first, and everything downloads first. Each takes a
+ * memory permit for itself, process takes one for the whole version. Asking for an operation a
+ * version already has running or done gets the same future back.
+ */
+public class Workspace implements Closeable {
+    private static final long STARTED = ManagementFactory.getRuntimeMXBean().getStartTime();
+
+    private final Path output;
+    private final Path minecraft;
+    private final boolean all;
+    private final boolean libs;
+    private final boolean force;
+    private final int compression;
+    private final boolean inMemory;
+    private final boolean intermediate;
+    private final int shards;
+    private final BlobStore blobs;
+    private final RemapCache cache;
+    private final VersionLeases leases;
+    private final MemoryGovernor governor;
+    private final ExecutorService workers;
+    private final Executor async;
+    private final boolean ownsWorkers;
+    private final boolean ownsAsync;
+
+    private final Map<MinecraftVersion, CompletableFuture<Downloaded>> downloads = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<?>> running = new ConcurrentHashMap<>();
+    private final Map<Path, SoftReference<CachedMappings>> mappings = new ConcurrentHashMap<>();
+    private final Map<MinecraftVersion, Long> skipped = Collections.synchronizedMap(new LinkedHashMap<>());
+    private CompletableFuture<ManifestJson> manifest;
+
+    private Workspace(Builder builder) {
+        this.output = builder.output;
+        this.minecraft = builder.minecraft;
+        this.all = builder.all;
+        this.libs = builder.all || builder.libs;
+        this.force = builder.force;
+        this.compression = builder.compression;
+        this.inMemory = builder.inMemory;
+        this.intermediate = builder.intermediate == null ? !builder.inMemory : builder.intermediate;
+        this.shards = builder.shards;
+        this.blobs = builder.blobs;
+        this.cache = builder.cache;
+        this.leases = builder.leases;
+        this.governor = new MemoryGovernor(builder.heapBudget);
+        this.ownsWorkers = builder.workers == null;
+        this.workers = ownsWorkers ? Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), daemon("MappingToy-Worker")) : builder.workers;
+        this.ownsAsync = builder.async == null;
+        this.async = ownsAsync ? Executors.newCachedThreadPool(daemon("MappingToy-Version")) : builder.async;
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return r -> {
+            Thread ret = new Thread(r, name);
+            ret.setDaemon(true);
+            return ret;
+        };
+    }
+
+    public static Builder builder(Path output) {
+        return new Builder(output);
+    }
+
+    public Path getOutput() {
+        return this.output;
+    }
+
+    /*
+     * Files of a version that are on disk once it's downloaded.
+     */
+    public static class Downloaded {
+        private final Path root;
+        private final VersionJson json;
+        private final Set<DownloadType> files;
+        private final List<Path> libraries;
+
+        private Downloaded(Path root, VersionJson json, Set<DownloadType> files, List<Path> libraries) {
+            this.root = root;
+            this.json = json;
+            this.files = Collections.unmodifiableSet(files);
+            this.libraries = Collections.unmodifiableList(libraries);
+        }
+
+        // The version's folder in the output, everything made for it goes here.
+        public Path getRoot() {
+            return this.root;
+        }
+
+        public VersionJson getJson() {
+            return this.json;
+        }
+
+        // Only the files that downloaded, or already matched their hash
+        public Set<DownloadType> getFiles() {
+            return this.files;
+        }
+
+        // Empty unless libraries are enabled
+        public List<Path> getLibraries() {
+            return this.libraries;
+        }
+    }
+
+    private interface Task<T> {
+        T run() throws IOException;
+    }
+
+    private <T> CompletableFuture<T> async(Task<T> task) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return task.run();
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, this.async);
+    }
+
+    // Kept until it fails, so the next call tries again.
+    public synchronized CompletableFuture<ManifestJson> getManifest() {
+        if (manifest == null || manifest.isCompletedExceptionally()) {
+            manifest = async(() -> {
+                Files.createDirectories(output);
+                ManifestJson ret = MappingToy.downloadLauncherManifest(output);
+                if (ret == null)
+                    throw new IOException("Could not load the launcher manifest");
+                return ret;
+            });
+        }
+        return manifest;
+    }
+
+    public CompletableFuture<Set<MinecraftVersion>> getVersions() {
+        return getManifest().thenApply(json -> new TreeSet<>(json.getEntries().keySet()));
+    }
+
+    public CompletableFuture<Downloaded> download(MinecraftVersion version) {
+        CompletableFuture<Downloaded> ret = downloads.computeIfAbsent(version, ver -> getManifest().thenCompose(json -> async(() -> {
+            ManifestJson.Entry entry = json.getVersion(ver);
+            if (entry == null || entry.url == null)
+                throw new IOException("No entry in launcher manifest for " + ver);
+
+            Path root = output.resolve(ver.toString());
+            Files.createDirectories(root);
+
+            VersionJson manifest = MappingToy.downloadVersionJson(root, entry.url);
+            if (manifest == null)
+                throw new IOException("Could not load version json for " + ver);
+
+            Set<DownloadType> files = MappingToy.downloadMinecraftFiles(root, manifest.getDownloads());
+            List<Path> libraries = libs ? MappingToy.downloadLauncherFiles(root, minecraft, ver, manifest) : Collections.emptyList();
+            return new Downloaded(root, manifest, files, libraries);
+        })));
+        ret.whenComplete((dl, e) -> {
+            if (e != null)
+                downloads.remove(version, ret);
+        });
+        return ret;
+    }
+
+    // Completes with null if the version has no mappings of that type.
+    public CompletableFuture<CachedMappings> getMappings(MinecraftVersion version, DownloadType type) {
+        if (type != DownloadType.CLIENT_MAPPINGS && type != DownloadType.SERVER_MAPPINGS)
+            throw new IllegalArgumentException("Not a mapping file: " + type);
+        return download(version).thenApply(dl -> getMappings(dl, type));
+    }
+
+    private CachedMappings getMappings(Downloaded dl, DownloadType type) {
+        if (!dl.getFiles().contains(type))
+            return null;
+
+        // Parsed mappings are the most expensive thing to get back, so they're kept for as long as memory allows.
+        Path file = dl.getRoot().resolve(type.getFilename());
+        SoftReference<CachedMappings> ref = mappings.get(file);
+        CachedMappings ret = ref == null ? null : ref.get();
+        if (ret == null) {
+            ret = new CachedMappings(file);
+            mappings.put(file, new SoftReference<>(ret));
+        }
+        return ret;
+    }
+
+    /*
+     * One future per version and operation, so asking again shares the work already started instead of
+     * doing it twice. Dropped if it fails, so the next call tries again. Not computeIfAbsent, as operations
+     * start the ones they depend on while being made.
+     */
+    @SuppressWarnings("unchecked")
+    private synchronized <T> CompletableFuture<T> once(MinecraftVersion version, String operation, Supplier<CompletableFuture<T>> factory) {
+        String key = version + " " + operation;
+        CompletableFuture<T> ret = (CompletableFuture<T>)running.get(key);
+        if (ret == null) {
+            CompletableFuture<T> started = factory.get();
+            running.put(key, started);
+            started.whenComplete((v, e) -> {
+                if (e != null)
+                    running.remove(key, started);
+            });
+            ret = started;
+        }
+        return ret;
+    }
+
+    private static Path require(Path file) throws IOException {
+        if (!Files.isRegularFile(file))
+            throw new IOException("Failed to make " + file);
+        return file;
+    }
+
+    /*
+     * The annotated joined jar, joined_a.jar. Fails if the client and server mappings can't be merged.
+     */
+    public CompletableFuture<Path> merge(MinecraftVersion version) {
+        return once(version, "merge", () -> download(version).thenCompose(dl -> async(() -> {
+            CachedMappings client = getMappings(dl, DownloadType.CLIENT_MAPPINGS);
+            if (!MappingToy.canMerge(dl.getRoot(), client, getMappings(dl, DownloadType.SERVER_MAPPINGS)))
+                throw new IOException("Can not merge client and server of " + version);
+
+            MemoryGovernor.Permit permit = governor.acquire(version.toString(), MappingToy.estimateMemory(dl.getRoot(), dl.getLibraries(), false));
+            try {
+                MappingToy.makeJoinedJar(dl.getRoot(), version, client, force, workers);
+            } finally {
+                permit.close();
+            }
+            return require(dl.getRoot().resolve("joined_a.jar"));
+        })));
+    }
+
+    /*
+     * Renamed jar, or its blob store manifest. The prefix is the jar it's made from: joined_a, joined, client or server.
+     */
+    public CompletableFuture<Path> rename(MinecraftVersion version, String prefix) {
+        boolean joined = "joined_a".equals(prefix) || "joined".equals(prefix);
+        if (!joined && !"client".equals(prefix) && !"server".equals(prefix))
+            throw new IllegalArgumentException("Unknown jar: " + prefix);
+
+        return once(version, "rename " + prefix, () -> {
+            CompletableFuture<?> input = joined ? merge(version) : download(version);
+            return input.thenCompose(v -> download(version)).thenCompose(dl -> async(() -> renameJar(dl, version, prefix)));
+        });
+    }
+
+    private Path renameJar(Downloaded dl, MinecraftVersion version, String prefix) throws IOException {
+        CachedMappings map = getMappings(dl, "server".equals(prefix) ? DownloadType.SERVER_MAPPINGS : DownloadType.CLIENT_MAPPINGS);
+        if (map == null)
+            throw new IOException("No " + ("server".equals(prefix) ? "server" : "client") + " mappings for " + version);
+
+        MemoryGovernor.Permit permit = governor.acquire(version.toString(), MappingToy.estimateMemory(dl.getRoot(), dl.getLibraries(), false));
+        try {
+            if ("joined".equals(prefix))
+                MappingToy.makePlainJar(dl.getRoot(), version, force, workers);
+            JarRenamer.makeMappedJar(dl.getRoot(), map, prefix, force, workers, compression, blobs, cache);
+        } finally {
+            permit.close();
+        }
+        return require(dl.getRoot().resolve(JarRenamer.getTarget(prefix, blobs)));
+    }
+
+    /*
+     * Metadata of the joined jar, either the obfuscated one or the renamed one. Returns the json, or the shard index.
+     */
+    public CompletableFuture<Path> metadata(MinecraftVersion version, boolean renamed) {
+        return once(version, renamed ? "metadata renamed" : "metadata", () -> {
+            CompletableFuture<?> input = renamed ? rename(version, "joined_a") : merge(version);
+            return input.thenCompose(v -> download(version)).thenCompose(dl -> async(() -> makeMetadata(dl, version, renamed)));
+        });
+    }
+
+    private Path makeMetadata(Downloaded dl, MinecraftVersion version, boolean renamed) throws IOException {
+        CachedMappings map = getMappings(dl, DownloadType.CLIENT_MAPPINGS);
+        String type = renamed ? "joined_a_n" : "joined_a";
+
+        MemoryGovernor.Permit permit = governor.acquire(version.toString(), MappingToy.estimateMemory(dl.getRoot(), dl.getLibraries(), false));
+        try {
+            if (renamed)
+                MappingToy.makeMappedMetadata(dl.getRoot(), dl.getLibraries(), map, force, blobs, shards, workers);
+            else
+                JarMetadata.makeMetadata(dl.getRoot(), dl.getLibraries(), map, type, true, force, shards, workers);
+        } finally {
+            permit.close();
+        }
+        return require(dl.getRoot().resolve(JarMetadata.getTarget(type, shards)));
+    }
+
+    /*
+     * Everything the command line makes for a version. Skipped if it's already up to date with these settings.
+     * With leases the version is claimed as soon as this is called, so start versions as there's room to work
+     * on them rather than all at once, or this process ends up holding all of them.
+     */
+    public CompletableFuture<Void> process(MinecraftVersion version) {
+        return once(version, "process", () -> {
+            if (leases == null)
+                return build(version, null);
+
+            // Another process sharing the output is already on it, so it's put aside for retry rather than waited for
+            return claimAndBuild(version, () -> {
+                log.info("Skipping " + version + " for now: Claimed by another process");
+                skipped.put(version, System.currentTimeMillis() + leases.getTimeout() + leases.getTimeout() / 4);
+            });
+        });
+    }
+
+    // Versions process put aside because another process held them, in the order they were skipped.
+    public List<MinecraftVersion> getSkipped() {
+        synchronized (skipped) {
+            return new ArrayList<>(skipped.keySet());
+        }
+    }
+
+    /*
+     * Tries a skipped version again once its lease would have gone stale if the holder died. A dead holder's
+     * lease is taken over, and one that finished leaves the version up to date, so only versions whose holder
+     * is still alive and renewing its lease are skipped for good.
+     */
+    public CompletableFuture<Void> retry(MinecraftVersion version) {
+        Long due = skipped.remove(version);
+        if (due == null)
+            return CompletableFuture.completedFuture(null);
+        return once(version, "retry", () -> leases.at(due).thenCompose(v -> claimAndBuild(version,
+            () -> log.info("Skipping " + version + ": Still claimed by another process"))));
+    }
+
+    private CompletableFuture<Void> claimAndBuild(MinecraftVersion version, Runnable skip) {
+        return async(() -> leases.claim(version.toString())).thenCompose(lease -> {
+            if (lease == null) {
+                skip.run();
+                return CompletableFuture.<Void>completedFuture(null);
+            }
+            return build(version, lease).whenComplete((v, e) -> lease.close());
+        });
+    }
+
+    private CompletableFuture<Void> build(MinecraftVersion version, VersionLeases.Lease lease) {
+        // Waiting happens between tasks rather than inside them, so a fixed size async executor can't fill up with versions waiting on their own downloads
+        return getManifest().thenCompose(json -> async(() -> checkVersion(json, version)))
+            .thenCompose(key -> key == null ? CompletableFuture.<Void>completedFuture(null) : download(version).thenCompose(dl -> async(() -> {
+                processVersion(dl, version, key, lease);
+                return null;
+            })));
+    }
+
+    /*
+     * Mapping deltas and the symbol index span versions, so they're updated once the versions they
+     * cover have been processed.
+     */
+    public CompletableFuture<Void> updateIndexes(Collection<MinecraftVersion> processed) {
+        return getManifest().thenCompose(json -> async(() -> {
+            // Every process sharing the output updates them in turn, each adding what it processed
+            VersionLeases.Lease lease = leases == null ? null : leases.await("_indexes");
+            try {
+                MappingDelta.makeDeltas(output, new TreeSet<>(json.getEntries().keySet()), processed, force);
+                SymbolIndex.update(output, json.getEntries().keySet());
+            } finally {
+                if (lease != null)
+                    lease.close();
+            }
+            return null;
+        }));
+    }
+
+    // The build key for the version, or null if there is nothing to do
+    private String checkVersion(ManifestJson json, MinecraftVersion ver) throws IOException {
+        log.log(Level.INFO, "Processing " + ver.toString() + ":");
+
+        ManifestJson.Entry mainEntry = json.getVersion(ver);
+        if (mainEntry == null || mainEntry.url == null) {
+            log.log(Level.INFO, "  No entry in Launcher Manifest");
+            return null;
+        }
+
+        Path root = output.resolve(ver.toString());
+        Files.createDirectories(root);
+
+        String key = mainEntry.url + " all=" + all + " libs=" + libs + " mc=" + minecraft.toAbsolutePath() + " compression=" + compression + " intermediate=" + intermediate + " blobs=" + (blobs != null) + " shards=" + shards;
+        if (!force && BuildManifest.isUpToDate(root, key)) {
+            log.info("  Up to date");
+            // The launcher folder isn't one of our outputs, so it's kept in sync even when nothing else needs doing
+            if (libs)
+                MappingToy.downloadLauncherFiles(root, minecraft, ver, Utils.loadJson(root.resolve("version.json"), VersionJson.class));
+            return null;
+        }
+        return key;
+    }
+
+    private void processVersion(Downloaded dl, MinecraftVersion ver, String key, VersionLeases.Lease lease) throws IOException {
+        Path root = dl.getRoot();
+        Set<DownloadType> downloaded = dl.getFiles();
+        Collection<Path> libraries = dl.getLibraries();
+
+        /*
+         * Anything half written by a run that died is cleaned up. Only files from before this process started
+         * are removed, even when holding the lease: merge, rename and metadata write here without taking it,
+         * so other calls on this workspace may have temp files here right now.
+         */
+        Utils.deleteTempFiles(root, STARTED);
+        Stages stages = new Stages(RunJournal.open(root, key + " force=" + force), lease);
+
+        /*
+         * Everything past here is held under one permit for the whole version, sized for its most
+         * expensive stage. Stages never ask for their own, so a version can't end up holding memory
+         * while waiting on more of it.
+         */
+        MemoryGovernor.Permit permit = governor.acquire(ver.toString(), MappingToy.estimateMemory(root, libraries, inMemory));
+        try {
+            // Mappings are only read once a stage needs them
+            CachedMappings clientMap = getMappings(dl, DownloadType.CLIENT_MAPPINGS);
+            CachedMappings serverMap = getMappings(dl, DownloadType.SERVER_MAPPINGS);
+            boolean mergeable = MappingToy.canMerge(root, clientMap, serverMap);
+            SymbolIndex.writeVersion(root, clientMap, serverMap, stages.redo("symbols"));
+            stages.done("symbols", Collections.singletonList(SymbolIndex.FILENAME));
+
+            ClassStore joinedA = null;
+            try {
+                if (mergeable) {
+                    MappingToy.writeMappings(root, clientMap, "joined", all, stages.redo("joined mappings"), workers);
+                    stages.done("joined mappings", mappingOutputs("joined"));
+                    if (inMemory) {
+                        boolean annotated = stages.redo("joined_a renamed") || stages.redo("joined_a metadata") || (intermediate && stages.redo("joined_a.jar")) ||
+                            !JarRenamer.exists(root, "joined_a", blobs) || !JarMetadata.exists(root, "joined_a", shards) ||
+                            (intermediate && !Files.isRegularFile(root.resolve("joined_a.jar")));
+                        boolean plain = all && (stages.redo("joined renamed") || (intermediate && stages.redo("joined.jar")) ||
+                            !JarRenamer.exists(root, "joined", blobs) || (intermediate && !Files.isRegularFile(root.resolve("joined.jar"))));
+
+                        if (annotated || plain)
+                            joinedA = MappingToy.makeJoinedStore(root, ver, clientMap, intermediate, !intermediate ? force : stages.redo("joined_a.jar"), workers);
+                        if (intermediate)
+                            stages.done("joined_a.jar", Collections.singletonList("joined_a.jar"));
+                        JarRenamer.makeMappedJar(root, joinedA, clientMap, "joined_a", stages.redo("joined_a renamed"), workers, compression, blobs, cache);
+                        stages.done("joined_a renamed", renamedOutputs("joined_a"));
+
+                        if (plain && joinedA != null) {
+                            try (ClassStore joined = MappingToy.stripSides(joinedA, ver, workers)) {
+                                if (intermediate) {
+                                    MappingToy.writeJar(root.resolve("joined.jar"), joined, stages.redo("joined.jar"), workers);
+                                    stages.done("joined.jar", Collections.singletonList("joined.jar"));
+                                }
+                                JarRenamer.makeMappedJar(root, joined, clientMap, "joined", stages.redo("joined renamed"), workers, compression, blobs, cache);
+                                stages.done("joined renamed", renamedOutputs("joined"));
+                            }
+                        }
+                    } else {
+                        MappingToy.makeJoinedJar(root, ver, clientMap, stages.redo("joined_a.jar"), workers);
+                        stages.done("joined_a.jar", Collections.singletonList("joined_a.jar"));
+                        JarRenamer.makeMappedJar(root, clientMap, "joined_a", stages.redo("joined_a renamed"), workers, compression, blobs, cache);
+                        stages.done("joined_a renamed", renamedOutputs("joined_a"));
+                        if (all) {
+                            MappingToy.makePlainJar(root, ver, stages.redo("joined.jar"), workers);
+                            stages.done("joined.jar", Collections.singletonList("joined.jar"));
+                            JarRenamer.makeMappedJar(root, clientMap, "joined", stages.redo("joined renamed"), workers, compression, blobs, cache);
+                            stages.done("joined renamed", renamedOutputs("joined"));
+                        }
+                    }
+                }
+
+                if (!mergeable || all){
+                    if (clientMap != null) {
+                        MappingToy.writeMappings(root, clientMap, "client", all, stages.redo("client mappings"), workers);
+                        stages.done("client mappings", mappingOutputs("client"));
+                        JarRenamer.makeMappedJar(root, clientMap, "client", stages.redo("client renamed"), workers, compression, blobs, cache);
+                        stages.done("client renamed", renamedOutputs("client"));
+                    }
+                    if (serverMap != null) {
+                        MappingToy.writeMappings(root, serverMap, "server", all, stages.redo("server mappings"), workers);
+                        stages.done("server mappings", mappingOutputs("server"));
+                        JarRenamer.makeMappedJar(root, serverMap, "server", stages.redo("server renamed"), workers, compression, blobs, cache);
+                        stages.done("server renamed", renamedOutputs("server"));
+                    }
+                }
+
+                if (mergeable) {
+                    if (joinedA != null)
+                        JarMetadata.makeMetadata(root, joinedA, libraries, clientMap, "joined_a", true, stages.redo("joined_a metadata"), shards, workers);
+                    else
+                        JarMetadata.makeMetadata(root, libraries, clientMap, "joined_a", true, stages.redo("joined_a metadata"), shards, workers);
+                    stages.done("joined_a metadata", metadataOutputs("joined_a"));
+                    if (all) {
+                        MappingToy.makeMappedMetadata(root, libraries, clientMap, stages.redo("joined_a_n metadata"), blobs, shards, workers);
+                        stages.done("joined_a_n metadata", metadataOutputs("joined_a_n"));
+                    }
+                }
+
+                stages.check();
+                if (BuildManifest.write(root, key, MappingToy.expectedOutputs(downloaded, mergeable, all, intermediate, blobs, shards)))
+                    stages.journal.finish();
+            } finally {
+                if (joinedA != null)
+                    joinedA.close();
+            }
+        } finally {
+            permit.close();
+        }
+    }
+
+    /*
+     * Decides which stages a forced run still has to redo. Stages skip outputs that already exist on
+     * their own, and every output is written atomically, so only --force needs the journal to tell
+     * what this run already rebuilt from what an earlier one left.
+     *
+     * Every stage asks here first, so a version whose lease was taken over stops before its next stage
+     * instead of racing whoever has it now.
+     */
+    private class Stages {
+        private final RunJournal journal;
+        private final VersionLeases.Lease lease;
+
+        private Stages(RunJournal journal, VersionLeases.Lease lease) {
+            this.journal = journal;
+            this.lease = lease;
+        }
+
+        private void check() throws IOException {
+            if (lease != null)
+                lease.check();
+        }
+
+        private boolean redo(String stage) throws IOException {
+            check();
+            return force && !journal.isDone(stage);
+        }
+
+        private void done(String stage, List<String> outputs) {
+            journal.done(stage, outputs);
+        }
+    }
+
+    private List<String> mappingOutputs(String prefix) {
+        List<String> ret = new ArrayList<>();
+        MappingToy.addMappingOutputs(ret, prefix, all ? IMappingFile.Format.values() : new IMappingFile.Format[]{ IMappingFile.Format.TSRG });
+        return ret;
+    }
+
+    private List<String> renamedOutputs(String prefix) {
+        List<String> ret = new ArrayList<>();
+        MappingToy.addRenamedOutputs(ret, prefix, blobs);
+        return ret;
+    }
+
+    private List<String> metadataOutputs(String type) {
+        List<String> ret = new ArrayList<>();
+        MappingToy.addMetadataOutputs(ret, type, shards);
+        return ret;
+    }
+
+    @Override
+    public void close() {
+        if (ownsWorkers)
+            workers.shutdownNow();
+        if (ownsAsync)
+            ((ExecutorService)async).shutdownNow();
+    }
+
+    public static class Builder {
+        private final Path output;
+        private Path minecraft = Utils.findMinecraftHome();
+        private boolean all = false;
+        private boolean libs = false;
+        private boolean force = false;
+        private int compression = Deflater.DEFAULT_COMPRESSION;
+        private boolean inMemory = false;
+        private Boolean intermediate = null;
+        private int shards = MetadataShards.SINGLE;
+        private BlobStore blobs = null;
+        private RemapCache cache = null;
+        private VersionLeases leases = null;
+        private long heapBudget = Runtime.getRuntime().maxMemory() / 5 * 4;
+        private ExecutorService workers = null;
+        private Executor async = null;
+
+        private Builder(Path output) {
+            this.output = output;
+        }
+
+        public Builder minecraft(Path value) {
+            this.minecraft = value;
+            return this;
+        }
+
+        // Every mapping format, the plain joined jar, the renamed metadata, and libraries
+        public Builder all(boolean value) {
+            this.all = value;
+            return this;
+        }
+
+        public Builder libs(boolean value) {
+            this.libs = value;
+            return this;
+        }
+
+        public Builder force(boolean value) {
+            this.force = value;
+            return this;
+        }
+
+        // 0-9, ZipWriter.STORED or Deflater.DEFAULT_COMPRESSION
+        public Builder compression(int value) {
+            this.compression = value;
+            return this;
+        }
+
+        public Builder inMemory(boolean value) {
+            this.inMemory = value;
+            return this;
+        }
+
+        // Defaults to writing them unless in memory
+        public Builder intermediate(boolean value) {
+            this.intermediate = value;
+            return this;
+        }
+
+        // See MetadataShards.parse
+        public Builder metaShards(int value) {
+            this.shards = value;
+            return this;
+        }
+
+        public Builder blobStore(BlobStore value) {
+            this.blobs = value;
+            return this;
+        }
+
+        public Builder remapCache(RemapCache value) {
+            this.cache = value;
+            return this;
+        }
+
+        // Claim each version before processing it, so processes sharing the output split the work
+        public Builder leases(VersionLeases value) {
+            this.leases = value;
+            return this;
+        }
+
+        // In bytes
+        public Builder heapBudget(long value) {
+            this.heapBudget = value;
+            return this;
+        }
+
+        public Builder workers(ExecutorService value) {
+            this.workers = value;
+            return this;
+        }
+
+        public Builder async(Executor value) {
+            this.async = value;
+            return this;
+        }
+
+        public Workspace build() {
+            return new Workspace(this);
+        }
+    }
+}
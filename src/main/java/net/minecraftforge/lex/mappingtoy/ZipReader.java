@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) LexManos
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+package net.minecraftforge.lex.mappingtoy;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/*
+ * Minimal random access zip reader that works off the central directory.
+ * Unlike ZipInputStream this lets us get at the raw compressed bytes of an entry,
+ * so things we don't modify can be copied to the output without inflating and deflating them again.
+ */
+public class ZipReader implements Closeable {
+    private static final int LOCAL_SIG   = 0x04034b50;
+    private static final int CENTRAL_SIG = 0x02014b50;
+    private static final int END_SIG     = 0x06054b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int END_HEADER_SIZE = 22;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final List<Entry> entries;
+
+    public ZipReader(Path path) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            this.entries = Collections.unmodifiableList(readCentralDirectory());
+        } catch (IOException e) {
+            this.channel.close();
+            throw e;
+        }
+    }
+
+    public Path getPath() {
+        return this.path;
+    }
+
+    public List<Entry> getEntries() {
+        return this.entries;
+    }
+
+    private List<Entry> readCentralDirectory() throws IOException {
+        long size = channel.size();
+        int scan = (int)Math.min(size, END_HEADER_SIZE + 0xFFFF);
+        ByteBuffer tail = read(size - scan, scan);
+
+        int end = -1;
+        for (int x = scan - END_HEADER_SIZE; x >= 0; x--) {
+            if (tail.getInt(x) == END_SIG) {
+                end = x;
+                break;
+            }
+        }
+        if (end == -1)
+            throw new ZipException("Could not find end of central directory: " + path);
+
+        int count = tail.getShort(end + 10) & 0xFFFF;
+        long cenSize = tail.getInt(end + 12) & 0xFFFFFFFFL;
+        long cenOffset = tail.getInt(end + 16) & 0xFFFFFFFFL;
+        if (count == 0xFFFF || cenSize == 0xFFFFFFFFL || cenOffset == 0xFFFFFFFFL)
+            throw new ZipException("Zip64 archives are not supported: " + path);
+
+        ByteBuffer cen = read(cenOffset, (int)cenSize);
+        List<Entry> ret = new ArrayList<>(count);
+        int pos = 0;
+        for (int x = 0; x < count; x++) {
+            if (cen.getInt(pos) != CENTRAL_SIG)
+                throw new ZipException("Invalid central directory header at " + (cenOffset + pos) + ": " + path);
+
+            int flags        = cen.getShort(pos +  8) & 0xFFFF;
+            int method       = cen.getShort(pos + 10) & 0xFFFF;
+            int time         = cen.getInt(pos + 12);
+            long crc         = cen.getInt(pos + 16) & 0xFFFFFFFFL;
+            long csize       = cen.getInt(pos + 20) & 0xFFFFFFFFL;
+            long usize       = cen.getInt(pos + 24) & 0xFFFFFFFFL;
+            int nameLen      = cen.getShort(pos + 28) & 0xFFFF;
+            int extraLen     = cen.getShort(pos + 30) & 0xFFFF;
+            int commentLen   = cen.getShort(pos + 32) & 0xFFFF;
+            long offset      = cen.getInt(pos + 42) & 0xFFFFFFFFL;
+
+            byte[] name = new byte[nameLen];
+            cen.position(pos + 46);
+            cen.get(name);
+
+            ret.add(new Entry(new String(name, (flags & 0x800) != 0 ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1), method, time, crc, csize, usize, offset));
+            pos += 46 + nameLen + extraLen + commentLen;
+        }
+        return ret;
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0)
+                throw new EOFException("Unexpected end of file: " + path);
+        }
+        buf.flip();
+        return buf;
+    }
+
+    /*
+     * Returns the data for this entry exactly as it is stored in the archive.
+     */
+    public byte[] readRaw(Entry entry) throws IOException {
+        return readData(entry, 0);
+    }
+
+    private byte[] readData(Entry entry, int padding) throws IOException {
+        ByteBuffer header = read(entry.offset, LOCAL_HEADER_SIZE);
+        if (header.getInt(0) != LOCAL_SIG)
+            throw new ZipException("Invalid local header for " + entry.name + ": " + path);
+        int nameLen = header.getShort(26) & 0xFFFF;
+        int extraLen = header.getShort(28) & 0xFFFF;
+        return read(entry.offset + LOCAL_HEADER_SIZE + nameLen + extraLen, (int)entry.csize + padding).array();
+    }
+
+    public InputStream open(Entry entry) throws IOException {
+        if (entry.method == ZipEntry.STORED)
+            return new ByteArrayInputStream(readRaw(entry));
+
+        if (entry.method == ZipEntry.DEFLATED) {
+            //Raw inflaters need a trailing dummy byte to reliably detect the end of the stream, same as ZipFile does
+            byte[] raw = readData(entry, 1);
+            Inflater inf = new Inflater(true);
+            return new InflaterInputStream(new ByteArrayInputStream(raw), inf) {
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    inf.end();
+                }
+            };
+        }
+        throw new ZipException("Unsupported compression method " + entry.method + " for " + entry.name + ": " + path);
+    }
+
+    public byte[] read(Entry entry) throws IOException {
+        try (InputStream in = open(entry)) {
+            return Utils.readStreamFully(in);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+
+    public static class Entry {
+        private final String name;
+        private final int method;
+        private final int time;
+        private final long crc;
+        private final long csize;
+        private final long size;
+        private final long offset;
+
+        private Entry(String name, int method, int time, long crc, long csize, long size, long offset) {
+            this.name = name;
+            this.method = method;
+            this.time = time;
+            this.crc = crc;
+            this.csize = csize;
+            this.size = size;
+            this.offset = offset;
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        public boolean isDirectory() {
+            return this.name.endsWith("/");
+        }
+
+        public int getMethod() {
+            return this.method;
+        }
+
+        public int getDosTime() {
+            return this.time;
+        }
+
+        public long getCrc() {
+            return this.crc;
+        }
+
+        public long getCompressedSize() {
+            return this.csize;
+        }
+
+        public long getSize() {
+            return this.size;
+        }
+
+        @Override
+        public String toString() {
+            return this.name;
+        }
+    }
+}
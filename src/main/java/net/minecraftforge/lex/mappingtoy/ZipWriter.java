@@ -0,0 +1,305 @@
+/*
+ * Copyright (c) LexManos
+ * SPDX-License-Identifier: LGPL-2.1-only
+ */
+package net.minecraftforge.lex.mappingtoy;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/*
+ * Counterpart to ZipReader, writes the zip structures ourselves so that entries
+ * can be added from already compressed data.
+ *
+ * Every entry gets the same fixed DOS timestamp and extended timestamp field, written directly
+ * so we never have to touch the JVM's default TimeZone. Missing parent directories are added
+ * automatically. All public methods are safe to call from multiple threads.
+ *
+ * Entries are built as self contained Blocks, the local header and compressed data, which do not
+ * depend on where they end up in the archive. So compression can be done on any thread and the
+ * blocks written afterwards in whatever fixed order the caller wants, keeping output stable.
+ */
+public class ZipWriter implements Closeable {
+    public static final int STORED = -2; // Compression level meaning don't compress at all.
+    private static final int LOCAL_SIG   = 0x04034b50;
+    private static final int CENTRAL_SIG = 0x02014b50;
+    private static final int END_SIG     = 0x06054b50;
+    private static final int FLAG_UTF8   = 0x800;
+    private static final int DOS_TIME    = toDosTime(Utils.STABLE_TIME);
+    private static final byte[] EXTRA    = extendedTime(Utils.STABLE_TIME);
+
+    private final OutputStream out;
+    private final int level;
+    private final List<Record> records = new ArrayList<>();
+    private final Set<String> names = new HashSet<>();
+    private long offset = 0;
+
+    public ZipWriter(OutputStream out) {
+        this(out, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    public ZipWriter(OutputStream out, int level) {
+        this.out = new BufferedOutputStream(out);
+        this.level = level;
+    }
+
+    public int getLevel() {
+        return this.level;
+    }
+
+    public synchronized void putDirectory(String name) throws IOException {
+        if (!name.endsWith("/"))
+            name += '/';
+        if (!names.contains(name))
+            write(directory(name));
+    }
+
+    public void put(String name, byte[] data) throws IOException {
+        write(compress(name, data, this.level));
+    }
+
+    /*
+     * Copies an entry from the reader without touching its compressed data.
+     */
+    public void putRaw(String name, ZipReader reader, ZipReader.Entry entry) throws IOException {
+        write(raw(name, reader, entry, this.level));
+    }
+
+    // Directories may already have been added as the parent of an earlier entry, so a repeat is skipped rather than an error.
+    public synchronized void write(Block block) throws IOException {
+        if (names.contains(block.name)) {
+            if (block.name.endsWith("/"))
+                return;
+            throw new ZipException("duplicate entry: " + block.name);
+        }
+
+        int i = block.name.lastIndexOf('/', block.name.length() - 2);
+        if (i != -1) {
+            String dir = block.name.substring(0, i + 1);
+            if (!names.contains(dir))
+                write(directory(dir));
+        }
+
+        names.add(block.name);
+        // Only what the central directory needs is kept, the block's data is the caller's to drop
+        records.add(new Record(block, offset));
+        out.write(block.data);
+        offset += block.data.length;
+    }
+
+    public static Block directory(String name) {
+        return new Block(name, ZipEntry.STORED, 0, 0, new byte[0]);
+    }
+
+    public static Block compress(String name, byte[] data, int level) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        if (level == STORED)
+            return new Block(name, ZipEntry.STORED, crc.getValue(), data.length, data);
+        return new Block(name, ZipEntry.DEFLATED, crc.getValue(), data.length, deflate(data, level));
+    }
+
+    public static Block raw(String name, ZipReader reader, ZipReader.Entry entry, int level) throws IOException {
+        if (entry.getMethod() != ZipEntry.STORED && entry.getMethod() != ZipEntry.DEFLATED)
+            return compress(name, reader.read(entry), level);
+        return new Block(name, entry.getMethod(), entry.getCrc(), entry.getSize(), reader.readRaw(entry));
+    }
+
+    // Entry from compressed data we already have, such as a stored blob.
+    public static Block precompressed(String name, int method, long crc, long size, byte[] compressed) {
+        return new Block(name, method, crc, size, compressed);
+    }
+
+    private static byte[] deflate(byte[] data, int level) {
+        Deflater def = new Deflater(level, true);
+        try {
+            def.setInput(data);
+            def.finish();
+            ByteArrayOutputStream ret = new ByteArrayOutputStream(Math.max(64, data.length / 2));
+            byte[] buf = new byte[8192];
+            while (!def.finished()) {
+                int len = def.deflate(buf);
+                ret.write(buf, 0, len);
+            }
+            return ret.toByteArray();
+        } finally {
+            def.end();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            writeCentralDirectory();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeCentralDirectory() throws IOException {
+        ByteArrayOutputStream cen = new ByteArrayOutputStream();
+        for (Record rec : records) {
+            writeInt(cen, CENTRAL_SIG);
+            writeShort(cen, rec.version());
+            writeShort(cen, rec.version());
+            writeShort(cen, FLAG_UTF8);
+            writeShort(cen, rec.method);
+            writeInt(cen, DOS_TIME);
+            writeInt(cen, (int)rec.crc);
+            writeInt(cen, (int)rec.csize);
+            writeInt(cen, (int)rec.size);
+            writeShort(cen, rec.nameBytes.length);
+            writeShort(cen, EXTRA.length);
+            writeShort(cen, 0); // Comment
+            writeShort(cen, 0); // Disk number
+            writeShort(cen, 0); // Internal attributes
+            writeInt(cen, 0);   // External attributes
+            writeInt(cen, (int)rec.offset);
+            cen.write(rec.nameBytes);
+            cen.write(EXTRA);
+        }
+
+        if (records.size() >= 0xFFFF || offset >= 0xFFFFFFFFL)
+            throw new ZipException("Zip64 archives are not supported");
+
+        int cenSize = cen.size();
+        writeInt(cen, END_SIG);
+        writeShort(cen, 0);
+        writeShort(cen, 0);
+        writeShort(cen, records.size());
+        writeShort(cen, records.size());
+        writeInt(cen, cenSize);
+        writeInt(cen, (int)offset);
+        writeShort(cen, 0);
+
+        cen.writeTo(out);
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write(value & 0xFF);
+        out.write((value >>> 8) & 0xFF);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        writeShort(out, value & 0xFFFF);
+        writeShort(out, (value >>> 16) & 0xFFFF);
+    }
+
+    private static int toDosTime(long time) {
+        Calendar cal = new GregorianCalendar(Utils.GMT);
+        cal.setTimeInMillis(time);
+        return (cal.get(Calendar.YEAR) - 1980) << 25 |
+               (cal.get(Calendar.MONTH) + 1)   << 21 |
+               cal.get(Calendar.DAY_OF_MONTH) << 16 |
+               cal.get(Calendar.HOUR_OF_DAY)  << 11 |
+               cal.get(Calendar.MINUTE)       <<  5 |
+               cal.get(Calendar.SECOND)       >>  1;
+    }
+
+    // Info-ZIP extended timestamp, only the modification time in seconds since the epoch, which is always UTC.
+    private static byte[] extendedTime(long time) {
+        ByteArrayOutputStream ret = new ByteArrayOutputStream(9);
+        writeShort(ret, 0x5455);
+        writeShort(ret, 5);
+        ret.write(0x01);
+        writeInt(ret, (int)(time / 1000));
+        return ret.toByteArray();
+    }
+
+    private static class Record {
+        private final byte[] nameBytes;
+        private final int method;
+        private final long crc;
+        private final long csize;
+        private final long size;
+        private final long offset;
+
+        private Record(Block block, long offset) {
+            this.nameBytes = block.nameBytes;
+            this.method = block.method;
+            this.crc = block.crc;
+            this.csize = block.csize;
+            this.size = block.size;
+            this.offset = offset;
+        }
+
+        private int version() {
+            return this.method == ZipEntry.DEFLATED ? 20 : 10;
+        }
+    }
+
+    public static class Block {
+        private final String name;
+        private final byte[] nameBytes;
+        private final int method;
+        private final long crc;
+        private final long csize;
+        private final long size;
+        private final byte[] data;
+
+        private Block(String name, int method, long crc, long size, byte[] compressed) {
+            this.name = name;
+            this.nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            this.method = method;
+            this.crc = crc;
+            this.csize = compressed.length;
+            this.size = size;
+
+            ByteArrayOutputStream header = new ByteArrayOutputStream(30 + nameBytes.length + EXTRA.length + compressed.length);
+            writeInt(header, LOCAL_SIG);
+            writeShort(header, version());
+            writeShort(header, FLAG_UTF8);
+            writeShort(header, method);
+            writeInt(header, DOS_TIME);
+            writeInt(header, (int)crc);
+            writeInt(header, compressed.length);
+            writeInt(header, (int)size);
+            writeShort(header, nameBytes.length);
+            writeShort(header, EXTRA.length);
+            header.write(nameBytes, 0, nameBytes.length);
+            header.write(EXTRA, 0, EXTRA.length);
+            header.write(compressed, 0, compressed.length);
+            this.data = header.toByteArray();
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        public int getMethod() {
+            return this.method;
+        }
+
+        public long getCrc() {
+            return this.crc;
+        }
+
+        public long getSize() {
+            return this.size;
+        }
+
+        // Just the compressed data, without the local header in front of it
+        public byte[] getCompressed() {
+            return Arrays.copyOfRange(this.data, (int)(this.data.length - this.csize), this.data.length);
+        }
+
+        private int version() {
+            return this.method == ZipEntry.DEFLATED ? 20 : 10;
+        }
+    }
+}